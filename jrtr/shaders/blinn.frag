@@ -17,6 +17,6 @@ out vec4 frag_shaded;
 void main()
 {		
 	// The built-in GLSL function "texture" performs the texture lookup
-	frag_shaded = ((texture(myTexture, frag_texcoord)[0]+ texture(myTexture, frag_texcoord)[1]+texture(myTexture, frag_texcoord)[2])*(pow(hdotn[0], 4) + ndotl[0]) * vec4(lColor[0], 0) + ((texture(myTexture, frag_texcoord)[0]+ texture(myTexture, frag_texcoord)[1]+texture(myTexture, frag_texcoord)[2])*pow(hdotn[1], 4) + ndotl[1]) * vec4(lColor[1], 0)) * texture(myTexture, frag_texcoord);
+	frag_shaded = (((texture(myTexture, frag_texcoord)[0]+ texture(myTexture, frag_texcoord)[1]+texture(myTexture, frag_texcoord)[2])*pow(hdotn[0], 4) + ndotl[0]) * vec4(lColor[0], 0) + ((texture(myTexture, frag_texcoord)[0]+ texture(myTexture, frag_texcoord)[1]+texture(myTexture, frag_texcoord)[2])*pow(hdotn[1], 4) + ndotl[1]) * vec4(lColor[1], 0)) * texture(myTexture, frag_texcoord);
 }
 
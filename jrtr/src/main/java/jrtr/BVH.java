@@ -0,0 +1,346 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * A bounding volume hierarchy over the world space bounding boxes of a set
+ * of shape nodes, used by {@link GraphSceneManager} to cull the shapes of a
+ * transform group with many children. A query rejects a subtree outside the
+ * frustum with one box test and accepts a subtree inside it without testing
+ * its shapes, so its cost depends on the nodes that straddle the frustum
+ * boundary and on the number of visible shapes, not on the total. In the
+ * worst case, with every shape near the boundary, it is still linear.
+ * <p>
+ * The hierarchy is built top-down with the surface area heuristic, evaluated
+ * over a fixed number of bins per axis. When shapes move, the boxes on the
+ * path from their leaf to the root are refit. Refitting keeps the hierarchy
+ * correct but not efficient, so the total surface area of all boxes is
+ * tracked and the hierarchy reports itself as degraded once it has grown to
+ * twice its size after the last build.
+ * <p>
+ * The nodes are stored in flat arrays. An inner node has its two children
+ * next to each other; a leaf refers to a range of the shape array.
+ */
+class BVH {
+
+	private static final int BINS = 12;
+	private static final int MAX_LEAF_SIZE = 4;
+
+	private ShapeNode[] shapes;
+	private IdentityHashMap<ShapeNode, Integer> slots = new IdentityHashMap<ShapeNode, Integer>();
+
+	// Per node: bounding box as min x, y, z, max x, y, z, the index of the
+	// first child or shape, the number of shapes (0 for inner nodes), and
+	// the parent
+	private float[] box;
+	private int[] first, count, parent;
+	// Per shape: the leaf that contains it
+	private int[] leafOf;
+	private int nodeCount;
+
+	private float area, builtArea;
+
+	/**
+	 * Build the hierarchy over the given shapes, whose bounds must be up to
+	 * date.
+	 */
+	void build(List<ShapeNode> list) {
+		int n = list.size();
+		shapes = list.toArray(new ShapeNode[n]);
+		int maxNodes = Math.max(2 * n - 1, 1);
+		box = new float[6 * maxNodes];
+		first = new int[maxNodes];
+		count = new int[maxNodes];
+		parent = new int[maxNodes];
+		leafOf = new int[n];
+		nodeCount = 1;
+		parent[0] = -1;
+		area = 0;
+
+		float[] centroids = new float[3 * n];
+		for (int i = 0; i < n; i++) {
+			Bounds b = shapes[i].bounds;
+			centroids[3 * i] = (b.min.x + b.max.x) / 2;
+			centroids[3 * i + 1] = (b.min.y + b.max.y) / 2;
+			centroids[3 * i + 2] = (b.min.z + b.max.z) / 2;
+		}
+		build(0, 0, n, centroids);
+
+		slots.clear();
+		for (int i = 0; i < n; i++) {
+			slots.put(shapes[i], i);
+		}
+		builtArea = area;
+	}
+
+	private void build(int node, int start, int end, float[] centroids) {
+		computeBox(node, start, end);
+		area += surfaceArea(node);
+		int n = end - start;
+		if (n <= MAX_LEAF_SIZE) {
+			makeLeaf(node, start, end);
+			return;
+		}
+
+		// Centroid bounds, to place the bins
+		float[] cmin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] cmax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = start; i < end; i++) {
+			for (int a = 0; a < 3; a++) {
+				cmin[a] = Math.min(cmin[a], centroids[3 * i + a]);
+				cmax[a] = Math.max(cmax[a], centroids[3 * i + a]);
+			}
+		}
+
+		// Find the cheapest split over all axes and bin boundaries
+		int bestAxis = -1, bestSplit = 0;
+		float bestCost = Float.MAX_VALUE;
+		int[] binCount = new int[BINS];
+		float[] binBox = new float[6 * BINS];
+		float[] rightArea = new float[BINS];
+		int[] rightCount = new int[BINS];
+		for (int a = 0; a < 3; a++) {
+			float extent = cmax[a] - cmin[a];
+			if (extent <= 0)
+				continue;
+			Arrays.fill(binCount, 0);
+			for (int b = 0; b < BINS; b++) {
+				setEmpty(binBox, b);
+			}
+			for (int i = start; i < end; i++) {
+				int b = bin(centroids[3 * i + a], cmin[a], extent);
+				binCount[b]++;
+				grow(binBox, b, shapes[i].bounds);
+			}
+
+			// Sweep from the right, then from the left
+			float[] acc = new float[6];
+			setEmpty(acc, 0);
+			int c = 0;
+			for (int b = BINS - 1; b > 0; b--) {
+				union(acc, binBox, b);
+				c += binCount[b];
+				rightArea[b] = c == 0 ? 0 : surfaceArea(acc, 0);
+				rightCount[b] = c;
+			}
+			setEmpty(acc, 0);
+			c = 0;
+			for (int b = 0; b < BINS - 1; b++) {
+				union(acc, binBox, b);
+				c += binCount[b];
+				if (c == 0 || rightCount[b + 1] == 0)
+					continue;
+				float cost = surfaceArea(acc, 0) * c + rightArea[b + 1] * rightCount[b + 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = a;
+					bestSplit = b + 1;
+				}
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; split in the middle
+			mid = start + n / 2;
+		} else {
+			float extent = cmax[bestAxis] - cmin[bestAxis];
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (bin(centroids[3 * i + bestAxis], cmin[bestAxis], extent) < bestSplit) {
+					i++;
+				} else {
+					swap(i, j, centroids);
+					j--;
+				}
+			}
+			mid = i;
+		}
+
+		int left = nodeCount;
+		nodeCount += 2;
+		first[node] = left;
+		count[node] = 0;
+		parent[left] = node;
+		parent[left + 1] = node;
+		build(left, start, mid, centroids);
+		build(left + 1, mid, end, centroids);
+	}
+
+	private void makeLeaf(int node, int start, int end) {
+		first[node] = start;
+		count[node] = end - start;
+		for (int i = start; i < end; i++) {
+			leafOf[i] = node;
+		}
+	}
+
+	private static int bin(float c, float min, float extent) {
+		return Math.min((int) ((c - min) / extent * BINS), BINS - 1);
+	}
+
+	private void swap(int i, int j, float[] centroids) {
+		ShapeNode s = shapes[i];
+		shapes[i] = shapes[j];
+		shapes[j] = s;
+		for (int a = 0; a < 3; a++) {
+			float c = centroids[3 * i + a];
+			centroids[3 * i + a] = centroids[3 * j + a];
+			centroids[3 * j + a] = c;
+		}
+	}
+
+	/**
+	 * Refit the boxes above a shape whose bounds changed. Shapes that are not
+	 * in the hierarchy are ignored.
+	 */
+	void refit(ShapeNode s) {
+		Integer slot = slots.get(s);
+		if (slot == null)
+			return;
+		int node = leafOf[slot];
+		while (node >= 0) {
+			area -= surfaceArea(node);
+			if (count[node] > 0) {
+				computeBox(node, first[node], first[node] + count[node]);
+			} else {
+				setEmpty(box, node);
+				union(box, node, box, first[node]);
+				union(box, node, box, first[node] + 1);
+			}
+			area += surfaceArea(node);
+			node = parent[node];
+		}
+	}
+
+	/**
+	 * Whether refitting has made the hierarchy so loose that it should be
+	 * rebuilt.
+	 */
+	boolean isDegraded() {
+		return area > 2 * builtArea;
+	}
+
+	/**
+	 * Add the shapes that are not outside the frustum to a list. The shapes
+	 * in nodes completely inside the frustum are added without testing them.
+	 * The shapes come in tree order, which the build chose by position; it
+	 * is unrelated to the order of the list the hierarchy was built from.
+	 */
+	void query(Frustum frustum, ArrayList<SceneNode> out) {
+		if (shapes.length == 0)
+			return;
+		Vector3f min = new Vector3f(), max = new Vector3f();
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int k = 6 * node;
+			min.set(box[k], box[k + 1], box[k + 2]);
+			max.set(box[k + 3], box[k + 4], box[k + 5]);
+			Frustum.Intersection x = frustum.testBox(min, max);
+			if (x == Frustum.Intersection.OUTSIDE)
+				continue;
+			if (x == Frustum.Intersection.INSIDE) {
+				addAll(node, out);
+			} else if (count[node] > 0) {
+				for (int i = first[node]; i < first[node] + count[node]; i++) {
+					if (shapes[i].isVisible(frustum))
+						out.add(shapes[i]);
+				}
+			} else {
+				if (top + 2 > stack.length)
+					stack = Arrays.copyOf(stack, 2 * stack.length);
+				// Visit the left child first, so the shapes come in tree order
+				stack[top++] = first[node] + 1;
+				stack[top++] = first[node];
+			}
+		}
+	}
+
+	/**
+	 * Add all shapes below a node. Leaves are numbered in tree order, so the
+	 * shapes of a subtree form one range of the shape array.
+	 */
+	private void addAll(int node, ArrayList<SceneNode> out) {
+		int last = node;
+		while (count[last] == 0) {
+			last = first[last] + 1;
+		}
+		int start = node;
+		while (count[start] == 0) {
+			start = first[start];
+		}
+		for (int i = first[start]; i < first[last] + count[last]; i++) {
+			out.add(shapes[i]);
+		}
+	}
+
+	/**
+	 * Copy the box of the root into the given bounds.
+	 */
+	void getBounds(Bounds b) {
+		if (shapes.length == 0) {
+			b.setEmpty();
+			return;
+		}
+		b.min.set(box[0], box[1], box[2]);
+		b.max.set(box[3], box[4], box[5]);
+		b.empty = false;
+	}
+
+	private void computeBox(int node, int start, int end) {
+		setEmpty(box, node);
+		for (int i = start; i < end; i++) {
+			grow(box, node, shapes[i].bounds);
+		}
+	}
+
+	private float surfaceArea(int node) {
+		return surfaceArea(box, node);
+	}
+
+	private static float surfaceArea(float[] boxes, int i) {
+		int k = 6 * i;
+		float dx = boxes[k + 3] - boxes[k], dy = boxes[k + 4] - boxes[k + 1], dz = boxes[k + 5] - boxes[k + 2];
+		if (dx < 0 || dy < 0 || dz < 0)
+			return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	private static void setEmpty(float[] boxes, int i) {
+		int k = 6 * i;
+		boxes[k] = boxes[k + 1] = boxes[k + 2] = Float.MAX_VALUE;
+		boxes[k + 3] = boxes[k + 4] = boxes[k + 5] = -Float.MAX_VALUE;
+	}
+
+	private static void grow(float[] boxes, int i, Bounds b) {
+		if (b.empty)
+			return;
+		int k = 6 * i;
+		boxes[k] = Math.min(boxes[k], b.min.x);
+		boxes[k + 1] = Math.min(boxes[k + 1], b.min.y);
+		boxes[k + 2] = Math.min(boxes[k + 2], b.min.z);
+		boxes[k + 3] = Math.max(boxes[k + 3], b.max.x);
+		boxes[k + 4] = Math.max(boxes[k + 4], b.max.y);
+		boxes[k + 5] = Math.max(boxes[k + 5], b.max.z);
+	}
+
+	private static void union(float[] dst, float[] src, int i) {
+		union(dst, 0, src, i);
+	}
+
+	private static void union(float[] dst, int i, float[] src, int j) {
+		int k = 6 * i, l = 6 * j;
+		for (int a = 0; a < 3; a++) {
+			dst[k + a] = Math.min(dst[k + a], src[l + a]);
+			dst[k + 3 + a] = Math.max(dst[k + 3 + a], src[l + 3 + a]);
+		}
+	}
+}
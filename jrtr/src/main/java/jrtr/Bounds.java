@@ -0,0 +1,62 @@
+package jrtr;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * An axis aligned bounding box in world coordinates, as cached on the nodes
+ * of the scene graph for culling. A box may be empty, e.g., for a transform
+ * group without shapes.
+ */
+class Bounds {
+
+	final Vector3f min = new Vector3f();
+	final Vector3f max = new Vector3f();
+	boolean empty = true;
+
+	void setEmpty() {
+		empty = true;
+	}
+
+	/**
+	 * Set the box to enclose a sphere.
+	 */
+	void setSphere(float x, float y, float z, float r) {
+		min.x = x - r;
+		min.y = y - r;
+		min.z = z - r;
+		max.x = x + r;
+		max.y = y + r;
+		max.z = z + r;
+		empty = false;
+	}
+
+	/**
+	 * Grow the box to enclose another box.
+	 */
+	void union(Bounds b) {
+		if (b.empty)
+			return;
+		if (empty) {
+			set(b);
+			return;
+		}
+		min.x = Math.min(min.x, b.min.x);
+		min.y = Math.min(min.y, b.min.y);
+		min.z = Math.min(min.z, b.min.z);
+		max.x = Math.max(max.x, b.max.x);
+		max.y = Math.max(max.y, b.max.y);
+		max.z = Math.max(max.z, b.max.z);
+	}
+
+	void set(Bounds b) {
+		min.set(b.min);
+		max.set(b.max);
+		empty = b.empty;
+	}
+
+	boolean equals(Bounds b) {
+		if (empty || b.empty)
+			return empty == b.empty;
+		return min.equals(b.min) && max.equals(b.max);
+	}
+}
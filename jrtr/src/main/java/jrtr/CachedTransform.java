@@ -0,0 +1,60 @@
+package jrtr;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * The world transformation of a scene graph node, cached across frames. The
+ * world transformation is the world transformation of the parent times the
+ * local transformation of the node. It is only recomputed if the parent's
+ * world transformation changed or the local transformation differs from the
+ * copy taken when it was last computed, so a traversal of an unchanged graph
+ * does not multiply or allocate any matrices.
+ * <p>
+ * Applications must announce changed local transformations with
+ * {@link TransformGroup#setTransformation}, {@link TransformGroup#markDirty}
+ * or {@link ShapeNode#markDirty}; the marks decide which nodes the traversal
+ * visits at all. For a node that is visited, the local transformation is
+ * compared by value with the copy, so the cache needs no flag of its own and
+ * a node that was marked but not changed costs no multiplication. A
+ * recomputed world transformation is a new matrix, so render items that
+ * still refer to the previous one are not affected. If a node is reached
+ * through different parents, its cache is simply recomputed every time.
+ */
+class CachedTransform {
+
+	private Matrix4f world;
+	private Matrix4f local = new Matrix4f();
+	private Matrix4f parent;
+
+	/**
+	 * Bring the cached world transformation up to date.
+	 * 
+	 * @param parentWorld
+	 *            the world transformation of the parent
+	 * @param parentChanged
+	 *            whether the parent's world transformation changed in this
+	 *            traversal
+	 * @param localTransformation
+	 *            the current local transformation of the node
+	 * @return true if the world transformation changed
+	 */
+	boolean update(Matrix4f parentWorld, boolean parentChanged, Matrix4f localTransformation) {
+		if (world != null && !parentChanged && parent == parentWorld && local.equals(localTransformation))
+			return false;
+
+		Matrix4f m = new Matrix4f(parentWorld);
+		m.mul(localTransformation);
+		world = m;
+		local.set(localTransformation);
+		parent = parentWorld;
+		return true;
+	}
+
+	/**
+	 * Return the world transformation as of the last update, or null if there
+	 * was none yet.
+	 */
+	Matrix4f get() {
+		return world;
+	}
+}
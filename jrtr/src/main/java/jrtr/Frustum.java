@@ -41,15 +41,126 @@ public class Frustum {
 		this.projectionMatrix = m;
 	}
 
+	/**
+	 * Result of testing a bounding volume against the frustum.
+	 */
+	public enum Intersection {
+		OUTSIDE, INTERSECTING, INSIDE
+	}
+
+	/**
+	 * The six clip planes in world coordinates, four floats (a, b, c, d) per
+	 * plane, in the order left, right, bottom, top, near, far. A point lies
+	 * on the inner side of a plane if ax + by + cz + d >= 0. The normals have
+	 * unit length, so the value is the signed distance to the plane.
+	 */
+	private float[] planes = new float[24];
+
+	// The matrices the planes were last computed from
+	private Matrix4f planeProjection, planeCamera;
+
+	// Clip planes in camera coordinates for inBounds(), and the projection
+	// matrix they were computed from
+	private float[] cameraPlanes = new float[24];
+	private Matrix4f cameraPlaneProjection;
+
+	/**
+	 * Bring the clip planes up to date with the projection matrix and the
+	 * given camera matrix. The planes are cached and only recomputed if
+	 * either matrix changed since the last call; the scene manager calls this
+	 * once per frame, before it tests any bounding volumes.
+	 */
+	public void updatePlanes(Matrix4f cameraMatrix) {
+		if (planeProjection != null && planeProjection.equals(projectionMatrix) && planeCamera.equals(cameraMatrix))
+			return;
+
+		planeProjection = new Matrix4f(projectionMatrix);
+		planeCamera = new Matrix4f(cameraMatrix);
+		Matrix4f m = new Matrix4f(projectionMatrix);
+		m.mul(cameraMatrix);
+		computePlanes(m, planes);
+	}
+
+	/**
+	 * Compute the six normalized clip planes of a projection matrix, or of a
+	 * projection times a camera matrix.
+	 */
+	private static void computePlanes(Matrix4f m, float[] planes) {
+		// The planes are the sum and differences of the last row of the
+		// combined matrix and its first three rows (Gribb and Hartmann)
+		for (int i = 0; i < 6; i++) {
+			int row = i / 2;
+			float sign = i % 2 == 0 ? 1 : -1;
+			float len = 0;
+			for (int j = 0; j < 4; j++) {
+				float v = m.getElement(3, j) + sign * m.getElement(row, j);
+				planes[4 * i + j] = v;
+				if (j < 3)
+					len += v * v;
+			}
+			len = (float) Math.sqrt(len);
+			for (int j = 0; j < 4; j++) {
+				planes[4 * i + j] /= len;
+			}
+		}
+	}
+
+	/**
+	 * Test a bounding sphere in world coordinates against the clip planes of
+	 * the last call to {@link #updatePlanes(Matrix4f)}.
+	 */
+	public Intersection testSphere(Vector3f center, float radius) {
+		return testSphere(planes, center, radius);
+	}
+
+	private static Intersection testSphere(float[] planes, Vector3f center, float radius) {
+		Intersection result = Intersection.INSIDE;
+		for (int i = 0; i < 24; i += 4) {
+			float d = planes[i] * center.x + planes[i + 1] * center.y + planes[i + 2] * center.z + planes[i + 3];
+			if (d < -radius)
+				return Intersection.OUTSIDE;
+			if (d < radius)
+				result = Intersection.INTERSECTING;
+		}
+		return result;
+	}
+
+	/**
+	 * Test an axis aligned bounding box in world coordinates against the clip
+	 * planes of the last call to {@link #updatePlanes(Matrix4f)}. For each
+	 * plane, only the box corners farthest along and against the plane normal
+	 * are tested.
+	 */
+	public Intersection testBox(Vector3f min, Vector3f max) {
+		Intersection result = Intersection.INSIDE;
+		for (int i = 0; i < 24; i += 4) {
+			float a = planes[i], b = planes[i + 1], c = planes[i + 2], d = planes[i + 3];
+			float far = a * (a > 0 ? max.x : min.x) + b * (b > 0 ? max.y : min.y) + c * (c > 0 ? max.z : min.z) + d;
+			if (far < 0)
+				return Intersection.OUTSIDE;
+			float near = a * (a > 0 ? min.x : max.x) + b * (b > 0 ? min.y : max.y) + c * (c > 0 ? min.z : max.z) + d;
+			if (near < 0)
+				result = Intersection.INTERSECTING;
+		}
+		return result;
+	}
+
+	/**
+	 * Test whether a sphere in camera coordinates is not completely outside
+	 * the frustum, using the clip planes of the projection matrix alone.
+	 * 
+	 * @deprecated Test world space bounds with
+	 *             {@link #testSphere(Vector3f, float)} or
+	 *             {@link #testBox(Vector3f, Vector3f)} after
+	 *             {@link #updatePlanes(Matrix4f)} instead. Unlike the original
+	 *             version, this also tests the near and far plane.
+	 */
+	@Deprecated
 	public boolean inBounds(Vector3f point, float r) {
-		float root2 = (float) Math.sqrt(2);
-		Vector3f norm1 = new Vector3f(1 / root2, 0, 1 / root2);
-		Vector3f norm2 = new Vector3f(-1 / root2, 0, 1 / root2);
-		Vector3f norm3 = new Vector3f(0, 1 / root2, 1 / root2);
-		Vector3f norm4 = new Vector3f(0, -1 / root2, 1 / root2);
-		if (point.dot(norm1) < r && point.dot(norm2) < r && point.dot(norm3) < r && point.dot(norm4) < r) {
-			return true;
+		if (cameraPlaneProjection == null || !cameraPlaneProjection.equals(projectionMatrix)) {
+			cameraPlaneProjection = new Matrix4f(projectionMatrix);
+			computePlanes(projectionMatrix, cameraPlanes);
 		}
-		return false;
+		return testSphere(cameraPlanes, point, r) != Intersection.OUTSIDE;
 	}
 }
@@ -1,9 +1,13 @@
 package jrtr;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.vecmath.*;
 
@@ -15,74 +19,268 @@ public class GraphSceneManager implements SceneManagerInterface {
 	private Frustum frustum;
 	
 	private boolean doCull = true;
+	private boolean spatialIndex;
+	private boolean parallel;
 
 	/**
-	 * Implement the iterative graph traversal here.
+	 * Groups with at least this many children are culled with a spatial index
+	 * if {@link #setSpatialIndex(boolean)} is enabled.
 	 */
-	private class GraphSceneManagerItr implements SceneManagerIterator {
-		private class RItem {
-			public SceneNode n;
-			public Matrix4f m;
+	public static final int SPATIAL_INDEX_THRESHOLD = 64;
 
-			public RItem(SceneNode n, Matrix4f m) {
-				this.n = n;
-				this.m = m;
-			}
+	/**
+	 * In the parallel traversal, child lists longer than this are split into
+	 * separate tasks.
+	 */
+	public static final int PARALLEL_SPLIT = 256;
+
+	private static final Matrix4f IDENTITY = new Matrix4f();
+	static {
+		IDENTITY.setIdentity();
+	}
+
+	/**
+	 * A transform group whose children are being visited.
+	 */
+	private class RItem {
+		public TransformGroup group;
+		public Iterator<SceneNode> children;
+		// The children to visit, if the shapes were culled with the index
+		public ArrayList<SceneNode> visible;
+		public Matrix4f m;
+		public boolean changed;
+		// The group is completely inside the frustum
+		public boolean inside;
+		// The bounds of a child changed
+		public boolean dirty;
+		// The shape children were already culled with the spatial index
+		public boolean indexed;
+
+		public RItem(TransformGroup group, Iterator<SceneNode> children, Matrix4f m, boolean changed,
+				boolean inside) {
+			this.group = group;
+			this.children = children;
+			this.m = m;
+			this.changed = changed;
+			this.inside = inside;
 		}
+	}
+
+	/**
+	 * Enter a child group of r: update its world transformation and cull it.
+	 * 
+	 * @return the group to visit, or null if it is culled
+	 */
+	private RItem enter(RItem r, TransformGroup g) {
+		boolean changed = g.updateWorldTransformation(r.m, r.changed);
+		boolean inside = r.inside;
+		if (!inside && !changed && g.hasBounds()) {
+			// Visit what was marked dirty below the group, so shapes that
+			// moved back into view are not lost
+			if (g.refreshBounds(false))
+				r.dirty = true;
+			Frustum.Intersection x = test(g);
+			if (x == Frustum.Intersection.OUTSIDE)
+				return null;
+			inside = x == Frustum.Intersection.INSIDE;
+		}
+		RItem item;
+		if (spatialIndex && doCull && g.children.size() >= SPATIAL_INDEX_THRESHOLD) {
+			ArrayList<SceneNode> visible = new ArrayList<SceneNode>();
+			boolean shapesChanged = g.collectIndexed(frustum, changed, inside, visible);
+			item = new RItem(g, visible.iterator(), g.getWorldTransformation(), changed, inside);
+			item.visible = visible;
+			item.indexed = true;
+			item.dirty = shapesChanged;
+		} else {
+			// All children are traversed, so the marked ones need no attention
+			g.takeChanges();
+			g.dropIndex();
+			item = new RItem(g, g.getChildrenIterator(), g.getWorldTransformation(), changed, inside);
+		}
+		return item;
+	}
+
+	private Frustum.Intersection test(TransformGroup g) {
+		return g.bounds.empty ? Frustum.Intersection.OUTSIDE : frustum.testBox(g.bounds.min, g.bounds.max);
+	}
 
+	/**
+	 * Leave a group after all its children were visited, and update its
+	 * bounds if needed.
+	 */
+	private void leave(RItem r, RItem parent) {
+		if (r.group != null && (r.dirty || !r.group.hasValidBounds()) && r.group.updateBounds() && parent != null) {
+			parent.dirty = true;
+		}
+	}
+
+	/**
+	 * Visit a shape child of r.
+	 * 
+	 * @return its render item, or null if it is culled
+	 */
+	private RenderItem visit(RItem r, ShapeNode sn) {
+		// Indexed shapes were already updated before the index was queried
+		if (!r.indexed && sn.updateWorldTransformation(r.m, r.changed))
+			r.dirty = true;
+		if (r.inside || r.indexed || sn.isVisible(frustum))
+			return sn.getRenderItem();
+		return null;
+	}
+
+	private RItem rootItem() {
+		LinkedList<SceneNode> rootList = new LinkedList<SceneNode>();
+		rootList.add(root);
+		return new RItem(null, rootList.iterator(), IDENTITY, false, !doCull);
+	}
+
+	/**
+	 * Implement the iterative graph traversal here. The traversal is lazy:
+	 * each call to next() advances it only up to the next visible shape, so
+	 * the renderer can draw while the graph is being traversed. The world
+	 * transformations are cached on the nodes and only recomputed below a node
+	 * whose transformation changed since the last traversal.
+	 * <p>
+	 * Culling is hierarchical. A group whose cached bounding box is outside the
+	 * frustum is skipped with all its children, and the shapes below a group
+	 * that is completely inside are not tested. Bounding boxes are recomputed
+	 * on the way up for the groups in which something moved. Below a group
+	 * that is culled, only the nodes marked dirty are visited, so changed
+	 * transformations must be marked; see {@link TransformGroup}.
+	 * <p>
+	 * With the spatial index enabled, the shapes of large groups are culled
+	 * with a {@link BVH} instead of one by one, and only the visible ones are
+	 * traversed.
+	 */
+	private class GraphSceneManagerItr implements SceneManagerIterator {
 		private Stack<RItem> nodes = new Stack<RItem>();
-		private LinkedList<RenderItem> items = new LinkedList<RenderItem>();
-		private ListIterator<RenderItem> itr;
+		private RenderItem nextItem;
 
-		// Dummy implementation.
-		public GraphSceneManagerItr(GraphSceneManager sceneManager)
+		public GraphSceneManagerItr()
 		{
-			Matrix4f iden = new Matrix4f();
-			iden.setIdentity();
-			nodes.push(new RItem(sceneManager.root, iden));
-			while (nodes.empty() == false) {
-				RItem r = nodes.pop();
-				SceneNode n = r.n;
+			nodes.push(rootItem());
+			advance();
+		}
+
+		public boolean hasNext() {
+			return nextItem != null;
+		}
+
+		public RenderItem next() {
+			if (nextItem == null)
+				throw new NoSuchElementException();
+			RenderItem r = nextItem;
+			advance();
+			return r;
+		}
+
+		/**
+		 * Traverse the graph up to the next visible shape, or to the end.
+		 */
+		private void advance() {
+			nextItem = null;
+			while (!nodes.empty()) {
+				RItem r = nodes.peek();
+				if (!r.children.hasNext()) {
+					nodes.pop();
+					leave(r, nodes.empty() ? null : nodes.peek());
+					continue;
+				}
+				SceneNode n = r.children.next();
 				if (n instanceof TransformGroup) {
-					Iterator<SceneNode> i = ((TransformGroup) n).getChildrenIterator();
-					while (i.hasNext()) {
-						SceneNode next = i.next();
-						Matrix4f nextM = new Matrix4f(r.m);
-						nextM.mul(((TransformGroup) n).getTransformation());
-						nodes.push(new RItem(next, nextM));
-					}
+					RItem item = enter(r, (TransformGroup) n);
+					if (item != null)
+						nodes.push(item);
 				} else if (n instanceof ShapeNode) {
-					Matrix4f m = new Matrix4f(r.m);
-					Shape s = ((ShapeNode) n).getShape();
-					m.mul(s.getTransformation());
-					if (doCull) {
-						Vector4f p = new Vector4f();
-						Matrix4f c = new Matrix4f(camera.getCameraMatrix());
-						c.mul(m);
-						c.getColumn(3, p);
-						if (frustum.inBounds(new Vector3f(p.x, p.y, p.z), ((ShapeNode) n).getBoundingRadius())) {
-							items.add(new RenderItem(s, m));
-						}
-					} else {
-						items.add(new RenderItem(s, m));
-					}
+					nextItem = visit(r, (ShapeNode) n);
+					if (nextItem != null)
+						return;
 				}
 			}
-			
-			itr = (ListIterator<RenderItem>) items.iterator();
+		}
+	}
+
+	/**
+	 * The parallel traversal. It visits the same nodes as the sequential one,
+	 * but on the fork/join pool and all at once: each task collects the render
+	 * items of a range of children into its own list, and the lists are
+	 * concatenated in child order, so the items come out in the same order as
+	 * in the sequential traversal.
+	 * <p>
+	 * Every node is updated by exactly one task, so a node that appears in
+	 * several places of the graph must not be traversed in parallel. In
+	 * particular, the spatial index of a group is only built, refit and
+	 * queried by the task that enters the group, so it needs no locking.
+	 */
+	private class ParallelItr implements SceneManagerIterator {
+		private Iterator<RenderItem> itr;
+
+		public ParallelItr() {
+			RItem r = rootItem();
+			ArrayList<SceneNode> children = new ArrayList<SceneNode>();
+			children.add(root);
+			TraversalTask t = new TraversalTask(r, children, 0, 1);
+			ForkJoinPool.commonPool().invoke(t);
+			itr = t.items.iterator();
 		}
 
-		// Dummy implementation.
 		public boolean hasNext() {
 			return itr.hasNext();
 		}
 
-		// Dummy implementation.
 		public RenderItem next() {
 			return itr.next();
 		}
 	}
 
+	private class TraversalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private RItem r;
+		private List<SceneNode> children;
+		private int start, end;
+		ArrayList<RenderItem> items = new ArrayList<RenderItem>();
+
+		TraversalTask(RItem r, List<SceneNode> children, int start, int end) {
+			this.r = r;
+			this.children = children;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (end - start > PARALLEL_SPLIT) {
+				int mid = (start + end) >>> 1;
+				TraversalTask left = new TraversalTask(r, children, start, mid);
+				TraversalTask right = new TraversalTask(r, children, mid, end);
+				invokeAll(left, right);
+				items = left.items;
+				items.addAll(right.items);
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				SceneNode n = children.get(i);
+				if (n instanceof TransformGroup) {
+					TransformGroup g = (TransformGroup) n;
+					RItem item = enter(r, g);
+					if (item == null)
+						continue;
+					List<SceneNode> c = item.visible != null ? item.visible : g.getChildArray();
+					TraversalTask t = new TraversalTask(item, c, 0, c.size());
+					t.compute();
+					items.addAll(t.items);
+					leave(item, r);
+				} else if (n instanceof ShapeNode) {
+					RenderItem item = visit(r, (ShapeNode) n);
+					if (item != null)
+						items.add(item);
+				}
+			}
+		}
+	}
+
 	public GraphSceneManager(SceneNode root) {
 		this.root = root;
 		camera = new Camera();
@@ -99,7 +297,10 @@ public class GraphSceneManager implements SceneManagerInterface {
 	}
 
 	public SceneManagerIterator iterator() {
-		return new GraphSceneManagerItr(this);
+		if (doCull) {
+			frustum.updatePlanes(camera.getCameraMatrix());
+		}
+		return parallel ? new ParallelItr() : new GraphSceneManagerItr();
 	}
 
 	public void addLight(Light light) {
@@ -113,4 +314,39 @@ public class GraphSceneManager implements SceneManagerInterface {
 	public void toggleCull() {
 		doCull = !doCull;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Cull the shapes of groups with many children with a bounding volume
+	 * hierarchy. This pays off for large, mostly static scenes: only the
+	 * shapes marked dirty are refit, the hierarchy is rebuilt only when the
+	 * children of the group change, and only the visible shapes are tested
+	 * against the frustum and traversed.
+	 * <p>
+	 * The shapes of an indexed group are drawn in the order of the
+	 * hierarchy, which depends on their positions, and not in the order of
+	 * the children. Do not enable the index for scenes whose appearance
+	 * depends on the draw order within a group, such as transparent shapes
+	 * blended in a fixed order.
+	 */
+	public void setSpatialIndex(boolean spatialIndex) {
+		this.spatialIndex = spatialIndex;
+	}
+
+	public boolean getSpatialIndex() {
+		return spatialIndex;
+	}
+
+	/**
+	 * Traverse the scene graph in parallel, using the common fork/join pool.
+	 * The whole graph is then traversed before the first render item is
+	 * returned, which pays off for graphs with thousands of nodes. The render
+	 * items come in the same order as in the sequential traversal.
+	 */
+	public void setParallelTraversal(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean getParallelTraversal() {
+		return parallel;
+	}
+}
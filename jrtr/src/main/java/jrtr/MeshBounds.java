@@ -0,0 +1,128 @@
+package jrtr;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Bounding volumes of the vertex positions of a mesh in object coordinates:
+ * an axis aligned box and a bounding sphere. The sphere is found with
+ * Ritter's algorithm, and replaced by the sphere around the center of the box
+ * if that one is smaller.
+ * <p>
+ * Bounds are cached per {@link VertexData}, so shapes that share a mesh
+ * compute them only once. The cache does not keep the vertex data alive.
+ */
+class MeshBounds {
+
+	private static final Map<VertexData, MeshBounds> cache = new WeakHashMap<VertexData, MeshBounds>();
+
+	final float[] min = new float[3];
+	final float[] max = new float[3];
+	final float[] center = new float[3];
+	float radius;
+
+	/**
+	 * Return the bounds of the positions of the given vertex data, or null if
+	 * it has no positions.
+	 */
+	static MeshBounds get(VertexData vertexData) {
+		if (vertexData == null)
+			return null;
+		synchronized (cache) {
+			if (cache.containsKey(vertexData))
+				return cache.get(vertexData);
+		}
+		MeshBounds b = compute(vertexData);
+		synchronized (cache) {
+			cache.put(vertexData, b);
+		}
+		return b;
+	}
+
+	private static MeshBounds compute(VertexData vertexData) {
+		for (VertexData.VertexElement e : vertexData.getElements()) {
+			if (e.getSemantic() == VertexData.Semantic.POSITION && e.getNumberOfComponents() >= 3) {
+				float[] p = e.getData();
+				int stride = e.getNumberOfComponents();
+				if (p.length >= stride)
+					return new MeshBounds(p, stride, p.length / stride);
+			}
+		}
+		return null;
+	}
+
+	private MeshBounds(float[] p, int stride, int n) {
+		// Box
+		for (int a = 0; a < 3; a++) {
+			min[a] = max[a] = p[a];
+		}
+		for (int i = 0, k = 0; i < n; i++, k += stride) {
+			for (int a = 0; a < 3; a++) {
+				min[a] = Math.min(min[a], p[k + a]);
+				max[a] = Math.max(max[a], p[k + a]);
+			}
+		}
+
+		// Ritter: start with the sphere through two distant points, namely the
+		// point farthest from the first one and the point farthest from that
+		int y = farthest(p, stride, n, 0);
+		int z = farthest(p, stride, n, y);
+		float cx = (p[y] + p[z]) / 2, cy = (p[y + 1] + p[z + 1]) / 2, cz = (p[y + 2] + p[z + 2]) / 2;
+		float r = (float) Math.sqrt(distance2(p, y, p[z], p[z + 1], p[z + 2])) / 2;
+
+		// Grow the sphere to enclose all points
+		for (int i = 0, k = 0; i < n; i++, k += stride) {
+			float d2 = distance2(p, k, cx, cy, cz);
+			if (d2 > r * r) {
+				float d = (float) Math.sqrt(d2);
+				float newR = (r + d) / 2;
+				float t = (newR - r) / d;
+				cx += (p[k] - cx) * t;
+				cy += (p[k + 1] - cy) * t;
+				cz += (p[k + 2] - cz) * t;
+				r = newR;
+			}
+		}
+
+		// The sphere around the box center is sometimes smaller
+		float bx = (min[0] + max[0]) / 2, by = (min[1] + max[1]) / 2, bz = (min[2] + max[2]) / 2;
+		float br2 = 0;
+		for (int i = 0, k = 0; i < n; i++, k += stride) {
+			br2 = Math.max(br2, distance2(p, k, bx, by, bz));
+		}
+		float br = (float) Math.sqrt(br2);
+		if (br < r) {
+			cx = bx;
+			cy = by;
+			cz = bz;
+			r = br;
+		}
+
+		center[0] = cx;
+		center[1] = cy;
+		center[2] = cz;
+		// Allow for rounding in the incremental updates
+		radius = r * 1.0001f;
+	}
+
+	/**
+	 * Return the offset of the point farthest from the point at offset k.
+	 */
+	private static int farthest(float[] p, int stride, int n, int k) {
+		int best = k;
+		float bestD2 = 0;
+		for (int i = 0, j = 0; i < n; i++, j += stride) {
+			float d2 = distance2(p, j, p[k], p[k + 1], p[k + 2]);
+			if (d2 > bestD2) {
+				bestD2 = d2;
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	private static float distance2(float[] p, int k, float x, float y, float z) {
+		float dx = p[k] - x, dy = p[k + 1] - y, dz = p[k + 2] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+}
@@ -1,15 +1,48 @@
 package jrtr;
 
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * A leaf of the scene graph that draws a shape. For culling, the node has a
+ * bounding sphere and box in the object coordinates of the shape's vertex
+ * data, which the scene manager transforms to world space.
+ */
 public class ShapeNode implements SceneNode {
 	
 	private Shape shape;
 	private float rad;
+	// Bounds of the vertex positions, or null for a sphere around the origin
+	private MeshBounds mesh;
+	private CachedTransform world = new CachedTransform();
+	private RenderItem renderItem;
+
+	// The group this node was last found in as a child, which is notified of
+	// changes, or null; and whether that group has recorded a change not yet
+	// taken by the traversal
+	TransformGroup parent;
+	boolean changed;
+
+	// Bounding sphere and box in world space
+	Vector3f worldCenter = new Vector3f();
+	float worldRadius;
+	Bounds bounds = new Bounds();
 	
+	/**
+	 * Make a node whose bounds are computed from the positions of the shape's
+	 * vertex data. Shapes without positions get a unit sphere.
+	 */
 	public ShapeNode(Shape shape)
 	{
-		this(shape, 1);
+		this.shape = shape;
+		mesh = MeshBounds.get(shape.getVertexData());
+		rad = mesh != null ? mesh.radius : 1;
 	}
 	
+	/**
+	 * Make a node bounded by a sphere of the given radius around the origin
+	 * of the shape's object coordinates.
+	 */
 	public ShapeNode(Shape shape, float rad) {
 		this.shape = shape;
 		this.rad = rad;
@@ -20,7 +53,112 @@ public class ShapeNode implements SceneNode {
 		return shape;
 	}
 	
+	/**
+	 * Return the radius of the bounding sphere in object coordinates.
+	 */
 	public float getBoundingRadius() {
 		return rad;
 	}
+
+	/**
+	 * Return the center of the bounding sphere in object coordinates.
+	 */
+	public Vector3f getBoundingCenter() {
+		return mesh != null ? new Vector3f(mesh.center[0], mesh.center[1], mesh.center[2]) : new Vector3f();
+	}
+
+	/**
+	 * Notify the scene graph that the transformation of the shape changed.
+	 * This is required after every change once the shape has been traversed,
+	 * so that its bounds and render item are updated even while its group is
+	 * culled or indexed. See {@link TransformGroup} for details.
+	 */
+	public void markDirty() {
+		TransformGroup p = parent;
+		if (p != null)
+			p.childChanged(this);
+	}
+
+	/**
+	 * Return the world transformation of the shape, i.e., the transformation
+	 * of its parent groups times the transformation of the shape, as of the
+	 * last traversal of the scene graph. Do not modify it.
+	 */
+	public Matrix4f getWorldTransformation() {
+		return world.get();
+	}
+
+	/**
+	 * Bring the cached world transformation up to date during traversal.
+	 * 
+	 * @return true if it changed
+	 */
+	boolean updateWorldTransformation(Matrix4f parentWorld, boolean parentChanged) {
+		if (!world.update(parentWorld, parentChanged, shape.getTransformation()))
+			return false;
+		Matrix4f m = world.get();
+		renderItem = new RenderItem(shape, m);
+		updateBounds(m);
+		return true;
+	}
+
+	/**
+	 * Test the world space bounds against the frustum. Both the sphere and
+	 * the box must intersect it.
+	 */
+	boolean isVisible(Frustum frustum) {
+		return frustum.testSphere(worldCenter, worldRadius) != Frustum.Intersection.OUTSIDE
+				&& frustum.testBox(bounds.min, bounds.max) != Frustum.Intersection.OUTSIDE;
+	}
+
+	/**
+	 * Transform the bounds to world space. The sphere radius is scaled by the
+	 * largest scale factor of the transformation. The box is the tighter of
+	 * the box around the sphere and the box around the transformed mesh box.
+	 */
+	private void updateBounds(Matrix4f m) {
+		float cx = 0, cy = 0, cz = 0;
+		if (mesh != null) {
+			cx = mesh.center[0];
+			cy = mesh.center[1];
+			cz = mesh.center[2];
+		}
+		float scale2 = 0;
+		for (int j = 0; j < 3; j++) {
+			float x = m.getElement(0, j), y = m.getElement(1, j), z = m.getElement(2, j);
+			scale2 = Math.max(scale2, x * x + y * y + z * z);
+		}
+		worldRadius = rad * (float) Math.sqrt(scale2);
+		worldCenter.x = m.getElement(0, 0) * cx + m.getElement(0, 1) * cy + m.getElement(0, 2) * cz + m.getElement(0, 3);
+		worldCenter.y = m.getElement(1, 0) * cx + m.getElement(1, 1) * cy + m.getElement(1, 2) * cz + m.getElement(1, 3);
+		worldCenter.z = m.getElement(2, 0) * cx + m.getElement(2, 1) * cy + m.getElement(2, 2) * cz + m.getElement(2, 3);
+		bounds.setSphere(worldCenter.x, worldCenter.y, worldCenter.z, worldRadius);
+		if (mesh == null)
+			return;
+
+		// Transform the box by its center and half extents (Arvo)
+		float[] lo = { bounds.min.x, bounds.min.y, bounds.min.z };
+		float[] hi = { bounds.max.x, bounds.max.y, bounds.max.z };
+		for (int i = 0; i < 3; i++) {
+			float c = m.getElement(i, 3), e = 0;
+			for (int j = 0; j < 3; j++) {
+				float a = m.getElement(i, j);
+				c += a * (mesh.min[j] + mesh.max[j]) / 2;
+				e += Math.abs(a) * (mesh.max[j] - mesh.min[j]) / 2;
+			}
+			lo[i] = Math.max(lo[i], c - e);
+			hi[i] = Math.min(hi[i], c + e);
+		}
+		bounds.min.set(lo[0], lo[1], lo[2]);
+		bounds.max.set(hi[0], hi[1], hi[2]);
+	}
+
+	/**
+	 * Return the render item of the shape with its current world
+	 * transformation. It is only replaced when the world transformation
+	 * changes.
+	 */
+	RenderItem getRenderItem() {
+		return renderItem;
+	}
 }
\ No newline at end of file
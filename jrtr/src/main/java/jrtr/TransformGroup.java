@@ -0,0 +1,390 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * An inner node of the scene graph. Its transformation is applied to all its
+ * children, which may be further transform groups or shape nodes.
+ * <p>
+ * The scene manager caches the world transformation of each group during
+ * traversal; see {@link #getWorldTransformation()}. It also caches a world
+ * space bounding box of all shapes below the group, and skips the group if
+ * the box is outside the viewing frustum. To keep the box up to date without
+ * visiting the subtree, changes are propagated up the graph, so every change
+ * of a transformation after the first traversal must be announced: call
+ * {@link #setTransformation(Matrix4f)}, or {@link #markDirty()} after
+ * modifying the transformation in place, and {@link ShapeNode#markDirty()}
+ * after changing the transformation of a shape. Below a culled group, and
+ * among the shapes of a group culled with the spatial index, only the marked
+ * nodes are visited, so an unannounced change may go unnoticed there for
+ * any number of frames. Changes to the children list are detected by
+ * itself, as long as the list is not replaced.
+ * <p>
+ * Each group knows the group it was last found in as a child, and only
+ * notifies that one. A node that is a child of several groups is therefore
+ * not tracked reliably when some of them are culled.
+ */
+public class TransformGroup implements SceneNode {
+
+	public Matrix4f transformation;
+	public LinkedList<SceneNode> children;
+
+	private CachedTransform world = new CachedTransform();
+
+	// The group this one was last found in as a child, which is notified of
+	// changes, or null
+	private TransformGroup parent;
+
+	// Bounding box of the subtree. It is valid if it was computed from the
+	// current children and nothing below was marked dirty since. The children
+	// that were are collected in changedChildren until the traversal takes
+	// them; the lists are swapped, so marking never allocates.
+	Bounds bounds = new Bounds();
+	private LinkedList<SceneNode> boundsChildren;
+	private int boundsVersion;
+	private volatile boolean dirty = true;
+	private ArrayList<SceneNode> changedChildren = new ArrayList<SceneNode>();
+	private ArrayList<SceneNode> takenChildren = new ArrayList<SceneNode>();
+
+	// Spatial index over the shape children, for groups with many children.
+	// It is valid for the children it was built from.
+	private BVH index;
+	private LinkedList<SceneNode> indexedChildren;
+	private int indexVersion;
+	private ArrayList<ShapeNode> indexedShapes = new ArrayList<ShapeNode>();
+	private ArrayList<TransformGroup> groupChildren = new ArrayList<TransformGroup>();
+
+	// The children as a list with fast random access, for the parallel
+	// traversal. It is valid for the children it was copied from.
+	private List<SceneNode> childArray;
+	private LinkedList<SceneNode> arrayChildren;
+	private int arrayVersion;
+
+	/**
+	 * The children list, which counts its modifications, so the scene manager
+	 * notices a changed list without comparing it. Replacing a child through a
+	 * list iterator is not counted; use set() or remove and add instead.
+	 */
+	private static class ChildList extends LinkedList<SceneNode> {
+		private static final long serialVersionUID = 1L;
+
+		public SceneNode set(int index, SceneNode node) {
+			modCount++;
+			return super.set(index, node);
+		}
+
+		int version() {
+			return modCount;
+		}
+	}
+
+	public TransformGroup() {
+		transformation = new Matrix4f();
+		transformation.setIdentity();
+		children = new ChildList();
+	}
+
+	public Iterator<SceneNode> getChildrenIterator() {
+		return children.iterator();
+	}
+
+	public Matrix4f getTransformation() {
+		return transformation;
+	}
+
+	/**
+	 * Replace the transformation, and mark the group dirty.
+	 */
+	public void setTransformation(Matrix4f t) {
+		transformation = t;
+		markDirty();
+	}
+
+	/**
+	 * Notify the scene graph that the transformation of this group, or of a
+	 * node below it, was modified in place. The groups above are marked too,
+	 * up to the first one that is already marked, so this costs O(1) when
+	 * called repeatedly. It may be called while a frame is being rendered;
+	 * the change is then picked up by the frame after.
+	 */
+	public synchronized void markDirty() {
+		if (dirty)
+			return;
+		dirty = true;
+		TransformGroup p = parent;
+		if (p != null)
+			p.childChanged(this);
+	}
+
+	/**
+	 * Record that a child was marked dirty. A child is recorded once until
+	 * the changes are taken.
+	 */
+	synchronized void childChanged(SceneNode n) {
+		if (n instanceof ShapeNode) {
+			ShapeNode sn = (ShapeNode) n;
+			if (sn.changed)
+				return;
+			sn.changed = true;
+		}
+		changedChildren.add(n);
+		markDirty();
+	}
+
+	/**
+	 * Take the children that were marked dirty, and mark the group clean.
+	 * The traversal calls this before it visits the children, so a child
+	 * marked meanwhile marks the group again instead of being lost. The list
+	 * is valid until the next call.
+	 */
+	synchronized ArrayList<SceneNode> takeChanges() {
+		ArrayList<SceneNode> taken = changedChildren;
+		changedChildren = takenChildren;
+		changedChildren.clear();
+		takenChildren = taken;
+		for (SceneNode n : taken) {
+			if (n instanceof ShapeNode)
+				((ShapeNode) n).changed = false;
+		}
+		dirty = false;
+		return taken;
+	}
+
+	/**
+	 * Return the world transformation of this group, i.e., the product of the
+	 * transformations from the root down to and including this group, as of
+	 * the last traversal of the scene graph. Do not modify it.
+	 */
+	public Matrix4f getWorldTransformation() {
+		return world.get();
+	}
+
+	/**
+	 * Bring the cached world transformation up to date during traversal.
+	 * 
+	 * @return true if it changed, so the children must be updated too
+	 */
+	boolean updateWorldTransformation(Matrix4f parentWorld, boolean parentChanged) {
+		return world.update(parentWorld, parentChanged, transformation);
+	}
+
+	/**
+	 * Whether a bounding box was computed. It may be out of date; see
+	 * {@link #refreshBounds(boolean)}.
+	 */
+	boolean hasBounds() {
+		return boundsChildren != null;
+	}
+
+	/**
+	 * Whether the cached bounding box is up to date: it was computed from the
+	 * current children, and nothing below the group was marked dirty since.
+	 */
+	boolean hasValidBounds() {
+		return !dirty && isCurrent(boundsChildren, boundsVersion);
+	}
+
+	/**
+	 * Whether the children are the given list, unmodified since it had the
+	 * given version. A list that was replaced by the application cannot be
+	 * tracked, and never counts as unmodified.
+	 */
+	private boolean isCurrent(LinkedList<SceneNode> list, int version) {
+		return list == children && children instanceof ChildList && ((ChildList) children).version() == version;
+	}
+
+	/**
+	 * Return the children as a list with fast random access, which the
+	 * parallel traversal splits into ranges. It is copied only when the
+	 * children list changed, and must not be modified.
+	 */
+	List<SceneNode> getChildArray() {
+		if (!isCurrent(arrayChildren, arrayVersion)) {
+			childArray = Arrays.asList(children.toArray(new SceneNode[children.size()]));
+			arrayChildren = children;
+			arrayVersion = childrenVersion();
+		}
+		return childArray;
+	}
+
+	private int childrenVersion() {
+		return children instanceof ChildList ? ((ChildList) children).version() : 0;
+	}
+
+	/**
+	 * Bring the world transformations and the bounding box of the group up to
+	 * date, without culling anything. The scene manager calls this before it
+	 * tests the cached box of a group against the frustum. Only the children
+	 * that were marked dirty are visited, so for an unchanged group this costs
+	 * O(1). If the world transformation of the group or its children list
+	 * changed, all children are visited, and recursively the marked nodes
+	 * below them.
+	 * 
+	 * @param changed
+	 *            whether the world transformation of this group changed
+	 * @return true if the box changed
+	 */
+	boolean refreshBounds(boolean changed) {
+		boolean all = changed || !isCurrent(boundsChildren, boundsVersion);
+		if (!all && !dirty)
+			return false;
+		ArrayList<SceneNode> marked = takeChanges();
+		Matrix4f m = world.get();
+		for (SceneNode n : all ? children : marked) {
+			if (n instanceof TransformGroup) {
+				TransformGroup g = (TransformGroup) n;
+				g.refreshBounds(g.updateWorldTransformation(m, changed));
+			} else if (n instanceof ShapeNode) {
+				ShapeNode sn = (ShapeNode) n;
+				if (sn.updateWorldTransformation(m, changed))
+					refit(sn);
+			}
+		}
+		return updateBounds();
+	}
+
+	/**
+	 * Recompute the bounding box as the union of the boxes of the children,
+	 * after they have been traversed or refreshed. The children of a changed
+	 * list are adopted, so they notify this group from now on.
+	 * 
+	 * @return true if the box changed
+	 */
+	boolean updateBounds() {
+		if (!isCurrent(boundsChildren, boundsVersion))
+			adoptChildren();
+		Bounds old = new Bounds();
+		old.set(bounds);
+		if (hasValidIndex()) {
+			index.getBounds(bounds);
+			for (TransformGroup g : groupChildren) {
+				bounds.union(g.bounds);
+			}
+		} else {
+			bounds.setEmpty();
+			for (SceneNode n : children) {
+				if (n instanceof TransformGroup)
+					bounds.union(((TransformGroup) n).bounds);
+				else if (n instanceof ShapeNode)
+					bounds.union(((ShapeNode) n).bounds);
+			}
+		}
+		boundsChildren = children;
+		boundsVersion = childrenVersion();
+		return !bounds.equals(old);
+	}
+
+	private void adoptChildren() {
+		for (SceneNode n : children) {
+			if (n instanceof TransformGroup)
+				((TransformGroup) n).parent = this;
+			else if (n instanceof ShapeNode)
+				((ShapeNode) n).parent = this;
+		}
+	}
+
+	/**
+	 * Refit the spatial index after a shape moved.
+	 */
+	private void refit(ShapeNode s) {
+		if (index != null)
+			index.refit(s);
+	}
+
+	private boolean hasValidIndex() {
+		return index != null && isCurrent(indexedChildren, indexVersion);
+	}
+
+	/**
+	 * Discard the spatial index, when the scene manager no longer uses it.
+	 */
+	void dropIndex() {
+		index = null;
+		indexedChildren = null;
+		indexedShapes.clear();
+	}
+
+	/**
+	 * Use the spatial index to find the children to traverse: the shapes that
+	 * are not outside the frustum, followed by all transform group children.
+	 * The index is rebuilt if the world transformation of this group or the
+	 * children list changed. Otherwise only the shapes that were marked dirty
+	 * are brought up to date and refit. If refitting has degraded the index,
+	 * it is rebuilt.
+	 * <p>
+	 * The shapes found are then brought up to date like the children of a
+	 * group without index, and refit if they changed. A shape that was
+	 * changed without being marked is thus never drawn with a stale
+	 * transformation, but it is only found while its previous bounds are
+	 * not outside the frustum.
+	 * <p>
+	 * The shapes come in the order of the index, not in the order of the
+	 * children, except when the group is inside the frustum.
+	 * 
+	 * @param changed
+	 *            whether the world transformation of this group changed
+	 * @param inside
+	 *            whether this group is known to be completely inside the
+	 *            frustum, so all shapes are visible
+	 * @return true if the bounds of any shape changed
+	 */
+	boolean collectIndexed(Frustum frustum, boolean changed, boolean inside, ArrayList<SceneNode> out) {
+		ArrayList<SceneNode> marked = takeChanges();
+		Matrix4f m = world.get();
+		boolean shapesChanged = false;
+		if (changed || !hasValidIndex()) {
+			indexedShapes.clear();
+			groupChildren.clear();
+			for (SceneNode n : children) {
+				if (n instanceof ShapeNode) {
+					ShapeNode sn = (ShapeNode) n;
+					shapesChanged |= sn.updateWorldTransformation(m, changed);
+					indexedShapes.add(sn);
+				} else if (n instanceof TransformGroup) {
+					groupChildren.add((TransformGroup) n);
+				}
+			}
+			if (index == null)
+				index = new BVH();
+			index.build(indexedShapes);
+			indexedChildren = children;
+			indexVersion = childrenVersion();
+		} else {
+			for (SceneNode n : marked) {
+				if (n instanceof ShapeNode && ((ShapeNode) n).updateWorldTransformation(m, false)) {
+					index.refit((ShapeNode) n);
+					shapesChanged = true;
+				}
+			}
+			if (index.isDegraded())
+				index.build(indexedShapes);
+		}
+
+		int first = out.size();
+		if (inside) {
+			out.addAll(indexedShapes);
+		} else {
+			index.query(frustum, out);
+		}
+		int kept = first;
+		for (int i = first; i < out.size(); i++) {
+			ShapeNode sn = (ShapeNode) out.get(i);
+			if (sn.updateWorldTransformation(m, false)) {
+				index.refit(sn);
+				shapesChanged = true;
+				if (!inside && !sn.isVisible(frustum))
+					continue;
+			}
+			out.set(kept++, sn);
+		}
+		out.subList(kept, out.size()).clear();
+		out.addAll(groupChildren);
+		return shapesChanged;
+	}
+}
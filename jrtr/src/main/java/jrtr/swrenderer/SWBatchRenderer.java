@@ -0,0 +1,258 @@
+package jrtr.swrenderer;
+
+import jrtr.SceneManagerInterface;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders the frames of an animation offline, several frames at a time.
+ * This requires the animation to be a function of the frame index: the
+ * {@link Animation} puts a scene into the state of a given frame, no matter
+ * which frames it showed before.
+ * <p>
+ * Each worker thread owns a {@link SWRenderContext} that renders on that
+ * thread only, and its own scene made by the {@link SceneFactory}. The
+ * scenes may share their vertex data and textures, since rendering only
+ * reads them. Frames are rendered concurrently but delivered in frame order.
+ */
+public class SWBatchRenderer {
+
+	/**
+	 * Makes the scene of one worker. The factory is called once per worker,
+	 * from the worker thread, and may set up the render context, e.g., its
+	 * shaders or multisampling.
+	 */
+	public interface SceneFactory {
+		SceneManagerInterface createScene(SWRenderContext renderContext);
+	}
+
+	/**
+	 * Puts a scene into the state of a frame.
+	 */
+	public interface Animation {
+		void setFrame(SceneManagerInterface scene, int frame);
+	}
+
+	/**
+	 * Receives the rendered frames, in frame order, on the thread that called
+	 * {@link SWBatchRenderer#render(int, int, FrameConsumer)}.
+	 */
+	public interface FrameConsumer {
+		void frame(int frame, BufferedImage image) throws IOException;
+	}
+
+	private SceneFactory sceneFactory;
+	private Animation animation;
+	private int width, height;
+
+	// Worker state. Idle workers wait in the queue; a frame task takes one,
+	// renders with it and puts it back.
+	private int numWorkers;
+	private ExecutorService pool;
+	private LinkedBlockingQueue<Worker> idleWorkers;
+
+	private static class Worker {
+		SWRenderContext renderContext;
+		SceneManagerInterface scene;
+	}
+
+	public SWBatchRenderer(SceneFactory sceneFactory, Animation animation, int width, int height) {
+		this.sceneFactory = sceneFactory;
+		this.animation = animation;
+		this.width = width;
+		this.height = height;
+		numWorkers = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Set the number of frames rendered at the same time. The default is the
+	 * number of cores.
+	 */
+	public void setWorkers(int workers) {
+		stopWorkers();
+		numWorkers = Math.max(workers, 1);
+	}
+
+	public int getWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Shut down the worker threads and their render contexts. Call this when
+	 * all frames have been rendered; a later render call starts new workers.
+	 */
+	public void dispose() {
+		stopWorkers();
+	}
+
+	/**
+	 * Render count frames starting at frame first, and pass them to the
+	 * consumer in frame order. The images are not reused.
+	 */
+	public void render(int first, int count, final FrameConsumer consumer) throws IOException {
+		render(first, count, new FrameEncoder<BufferedImage>() {
+			public BufferedImage encode(BufferedImage image) {
+				BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				int[] src = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+				int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+				System.arraycopy(src, 0, dst, 0, src.length);
+				return copy;
+			}
+		}, new FrameSink<BufferedImage>() {
+			public void write(int frame, BufferedImage image) throws IOException {
+				consumer.frame(frame, image);
+			}
+		});
+	}
+
+	/**
+	 * Render count frames starting at frame first, and write each to its own
+	 * file in the given directory, named with {@link String#format} from the
+	 * pattern and the frame number. Frames are encoded by the workers.
+	 */
+	public void render(int first, int count, final File directory, final String namePattern,
+			final SWOffscreenRenderer.Format format) throws IOException {
+		render(first, count, new FrameEncoder<byte[]>() {
+			public byte[] encode(BufferedImage image) throws IOException {
+				return SWOffscreenRenderer.encode(image, format);
+			}
+		}, new FrameSink<byte[]>() {
+			public void write(int frame, byte[] data) throws IOException {
+				OutputStream out = new FileOutputStream(new File(directory, String.format(namePattern, frame)));
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Turns the framebuffer of a worker into the result of a frame, on the
+	 * worker thread.
+	 */
+	private interface FrameEncoder<T> {
+		T encode(BufferedImage image) throws IOException;
+	}
+
+	private interface FrameSink<T> {
+		void write(int frame, T result) throws IOException;
+	}
+
+	/**
+	 * Submit the frames in order and collect their results in order. At most
+	 * two frames per worker are in flight, which bounds the memory held by
+	 * finished frames waiting for an earlier one.
+	 */
+	private <T> void render(int first, int count, FrameEncoder<T> encoder, FrameSink<T> sink) throws IOException {
+		startWorkers();
+		LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+		int next = first;
+		try {
+			for (int frame = first; frame < first + count; frame++) {
+				if (pending.size() >= 2 * numWorkers) {
+					sink.write(next++, finish(pending.removeFirst()));
+				}
+				pending.add(pool.submit(new FrameTask<T>(frame, encoder)));
+			}
+			while (!pending.isEmpty()) {
+				sink.write(next++, finish(pending.removeFirst()));
+			}
+		} finally {
+			for (Future<T> f : pending) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	private class FrameTask<T> implements Callable<T> {
+		private int frame;
+		private FrameEncoder<T> encoder;
+
+		FrameTask(int frame, FrameEncoder<T> encoder) {
+			this.frame = frame;
+			this.encoder = encoder;
+		}
+
+		public T call() throws Exception {
+			Worker w = idleWorkers.take();
+			try {
+				if (w.renderContext == null) {
+					w.renderContext = new SWRenderContext(1);
+					w.renderContext.setViewportSize(width, height);
+					w.scene = sceneFactory.createScene(w.renderContext);
+					w.renderContext.setSceneManager(w.scene);
+				}
+				animation.setFrame(w.scene, frame);
+				w.renderContext.display();
+				return encoder.encode(w.renderContext.getColorBuffer());
+			} finally {
+				idleWorkers.add(w);
+			}
+		}
+	}
+
+	private <T> T finish(Future<T> frame) throws IOException {
+		try {
+			return frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rendering a frame");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Create the thread pool and the workers. The render contexts and scenes
+	 * are made lazily by the first frame each worker renders, and are kept
+	 * for later calls.
+	 */
+	private void startWorkers() {
+		if (pool != null)
+			return;
+		pool = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SWBatchRenderer-worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		idleWorkers = new LinkedBlockingQueue<Worker>();
+		for (int i = 0; i < numWorkers; i++) {
+			idleWorkers.add(new Worker());
+		}
+	}
+
+	/**
+	 * Shut down the thread pool and dispose the render contexts of the idle
+	 * workers.
+	 */
+	private void stopWorkers() {
+		if (pool == null)
+			return;
+		pool.shutdown();
+		pool = null;
+		for (Worker w : idleWorkers) {
+			if (w.renderContext != null)
+				w.renderContext.dispose();
+		}
+		idleWorkers = null;
+	}
+}
@@ -0,0 +1,231 @@
+package jrtr.swrenderer;
+
+import java.util.Arrays;
+
+/**
+ * Blinn shading with colored point lights, the software version of the
+ * blinn GLSL shader. Each light contributes its color times 100 / d^2 times
+ * n.l plus a specular term (n.h)^4, where h is the half vector between the
+ * directions to the light and to the viewer. As in the GLSL shader, the
+ * specular term is weighted with the sum of the albedo components, and the
+ * total is multiplied with the albedo. There is no ambient term.
+ * <p>
+ * The kernels for one to four lights are separate subclasses with the lights
+ * in fields; only scenes with more lights, up to the eight that the software
+ * renderer passes, loop over arrays.
+ */
+public class SWBlinnKernel implements SWShaderKernel {
+
+	public SWShaderKernel specialize(int numLights, float[] lightPositions, float[] lightColors) {
+		switch (numLights) {
+		case 0:
+			return new SWBlinnKernel();
+		case 1:
+			return new OneLight(lightPositions, lightColors);
+		case 2:
+			return new TwoLights(lightPositions, lightColors);
+		case 3:
+			return new ThreeLights(lightPositions, lightColors);
+		case 4:
+			return new FourLights(lightPositions, lightColors);
+		default:
+			return new ManyLights(numLights, lightPositions, lightColors);
+		}
+	}
+
+	/**
+	 * Without lights everything is black.
+	 */
+	public int shade(SWFragment f) {
+		return 0;
+	}
+
+	/**
+	 * Return the weight of a point light at (lx, ly, lz), (s (n.h)^4 + n.l) *
+	 * 100 / d^2. (vx, vy, vz) is the unit vector towards the viewer.
+	 */
+	static float intensity(SWFragment f, float vx, float vy, float vz, float s, float lx, float ly, float lz) {
+		float dx = lx - f.x, dy = ly - f.y, dz = lz - f.z;
+		float d2 = dx * dx + dy * dy + dz * dz;
+		float inv = 1 / (float) Math.sqrt(d2);
+		dx *= inv;
+		dy *= inv;
+		dz *= inv;
+		float ndotl = Math.max(f.nx * dx + f.ny * dy + f.nz * dz, 0);
+		float hx = dx + vx, hy = dy + vy, hz = dz + vz;
+		float hl = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+		float hdotn = Math.max(f.nx * hx + f.ny * hy + f.nz * hz, 0) / Math.max(hl, 1e-20f);
+		float h2 = hdotn * hdotn;
+		return (s * h2 * h2 + ndotl) * 100 / d2;
+	}
+
+	/**
+	 * Return the factor that turns the fragment position into the unit vector
+	 * towards the viewer, who sits at the origin of camera space.
+	 */
+	static float viewScale(SWFragment f) {
+		float l = (float) Math.sqrt(f.x * f.x + f.y * f.y + f.z * f.z);
+		return l > 0 ? -1 / l : 0;
+	}
+
+	private static class OneLight extends SWBlinnKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+
+		OneLight(float[] p, float[] c) {
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+		}
+
+		public int shade(SWFragment f) {
+			float v = viewScale(f);
+			float s = f.red + f.green + f.blue;
+			float s0 = intensity(f, f.x * v, f.y * v, f.z * v, s, x0, y0, z0);
+			return SWFragment.pack(f.red * s0 * r0, f.green * s0 * g0, f.blue * s0 * b0);
+		}
+	}
+
+	private static class TwoLights extends SWBlinnKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+
+		TwoLights(float[] p, float[] c) {
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+		}
+
+		public int shade(SWFragment f) {
+			float v = viewScale(f);
+			float vx = f.x * v, vy = f.y * v, vz = f.z * v;
+			float s = f.red + f.green + f.blue;
+			float s0 = intensity(f, vx, vy, vz, s, x0, y0, z0);
+			float s1 = intensity(f, vx, vy, vz, s, x1, y1, z1);
+			return SWFragment.pack(f.red * (s0 * r0 + s1 * r1), f.green * (s0 * g0 + s1 * g1),
+					f.blue * (s0 * b0 + s1 * b1));
+		}
+	}
+
+	private static class ThreeLights extends SWBlinnKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+		private final float x2, y2, z2, r2, g2, b2;
+
+		ThreeLights(float[] p, float[] c) {
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+			x2 = p[6];
+			y2 = p[7];
+			z2 = p[8];
+			r2 = c[6];
+			g2 = c[7];
+			b2 = c[8];
+		}
+
+		public int shade(SWFragment f) {
+			float v = viewScale(f);
+			float vx = f.x * v, vy = f.y * v, vz = f.z * v;
+			float s = f.red + f.green + f.blue;
+			float s0 = intensity(f, vx, vy, vz, s, x0, y0, z0);
+			float s1 = intensity(f, vx, vy, vz, s, x1, y1, z1);
+			float s2 = intensity(f, vx, vy, vz, s, x2, y2, z2);
+			return SWFragment.pack(f.red * (s0 * r0 + s1 * r1 + s2 * r2),
+					f.green * (s0 * g0 + s1 * g1 + s2 * g2),
+					f.blue * (s0 * b0 + s1 * b1 + s2 * b2));
+		}
+	}
+
+	private static class FourLights extends SWBlinnKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+		private final float x2, y2, z2, r2, g2, b2;
+		private final float x3, y3, z3, r3, g3, b3;
+
+		FourLights(float[] p, float[] c) {
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+			x2 = p[6];
+			y2 = p[7];
+			z2 = p[8];
+			r2 = c[6];
+			g2 = c[7];
+			b2 = c[8];
+			x3 = p[9];
+			y3 = p[10];
+			z3 = p[11];
+			r3 = c[9];
+			g3 = c[10];
+			b3 = c[11];
+		}
+
+		public int shade(SWFragment f) {
+			float v = viewScale(f);
+			float vx = f.x * v, vy = f.y * v, vz = f.z * v;
+			float s = f.red + f.green + f.blue;
+			float s0 = intensity(f, vx, vy, vz, s, x0, y0, z0);
+			float s1 = intensity(f, vx, vy, vz, s, x1, y1, z1);
+			float s2 = intensity(f, vx, vy, vz, s, x2, y2, z2);
+			float s3 = intensity(f, vx, vy, vz, s, x3, y3, z3);
+			return SWFragment.pack(f.red * (s0 * r0 + s1 * r1 + s2 * r2 + s3 * r3),
+					f.green * (s0 * g0 + s1 * g1 + s2 * g2 + s3 * g3),
+					f.blue * (s0 * b0 + s1 * b1 + s2 * b2 + s3 * b3));
+		}
+	}
+
+	private static class ManyLights extends SWBlinnKernel {
+		private final int n;
+		private final float[] position, color;
+
+		ManyLights(int n, float[] p, float[] c) {
+			this.n = n;
+			position = Arrays.copyOf(p, 3 * n);
+			color = Arrays.copyOf(c, 3 * n);
+		}
+
+		public int shade(SWFragment f) {
+			float v = viewScale(f);
+			float vx = f.x * v, vy = f.y * v, vz = f.z * v;
+			float s = f.red + f.green + f.blue;
+			float red = 0, green = 0, blue = 0;
+			for (int l = 0; l < 3 * n; l += 3) {
+				float sl = intensity(f, vx, vy, vz, s, position[l], position[l + 1], position[l + 2]);
+				red += sl * color[l];
+				green += sl * color[l + 1];
+				blue += sl * color[l + 2];
+			}
+			return SWFragment.pack(f.red * red, f.green * green, f.blue * blue);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package jrtr.swrenderer;
+
+/**
+ * Clips triangles in homogeneous coordinates before rasterization. Vertices
+ * are given after the viewport transformation, i.e., as (x, y, z, w) where
+ * the pixel position is (x/w, y/w) and z/w is in [0, 1] inside the view
+ * volume. Each vertex is a float array that starts with these four values and
+ * is followed by any number of attributes, which are interpolated linearly
+ * in homogeneous space along with the position.
+ * <p>
+ * Triangles are clipped against the near and far plane, which makes w
+ * positive for every output vertex, and against a guard band that extends the
+ * viewport by its own size on every side. Triangles that are entirely outside
+ * the viewport are rejected. All buffers are allocated once, so clipping does
+ * not allocate.
+ */
+class SWClipper {
+
+	// Clip planes
+	private static final int NEAR = 1;
+	private static final int FAR = 2;
+	private static final int GUARD_LEFT = 4;
+	private static final int GUARD_RIGHT = 8;
+	private static final int GUARD_TOP = 16;
+	private static final int GUARD_BOTTOM = 32;
+	private static final int CLIP_PLANES = 6;
+
+	// Viewport half-spaces, only used for trivial rejection
+	private static final int LEFT = 64;
+	private static final int RIGHT = 128;
+	private static final int TOP = 256;
+	private static final int BOTTOM = 512;
+
+	private static final int CLIP_MASK = (1 << CLIP_PLANES) - 1;
+
+	// A triangle clipped against six planes has at most nine vertices
+	private static final int MAX_VERTICES = 3 + CLIP_PLANES;
+
+	private int stride;
+	private float width, height;
+	private float[][] polygon;
+	private float[][] scratch;
+	private int size;
+
+	/**
+	 * @param stride
+	 *            the number of floats per vertex, at least four
+	 */
+	SWClipper(int stride) {
+		setStride(stride);
+	}
+
+	/**
+	 * Set the number of floats per vertex. The buffers only grow, so switching
+	 * between vertex formats does not allocate.
+	 */
+	void setStride(int stride) {
+		this.stride = stride;
+		if (polygon == null || polygon[0].length < stride) {
+			polygon = new float[MAX_VERTICES][stride];
+			scratch = new float[MAX_VERTICES][stride];
+		}
+	}
+
+	void setViewportSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Compute the outcode of a vertex. Bits are set for each plane the vertex is
+	 * outside of.
+	 */
+	int outcode(float x, float y, float z, float w) {
+		int code = 0;
+		if (z < 0)
+			code |= NEAR;
+		if (z > w)
+			code |= FAR;
+		if (x < -width * w)
+			code |= GUARD_LEFT;
+		if (x > 2 * width * w)
+			code |= GUARD_RIGHT;
+		if (y < -height * w)
+			code |= GUARD_TOP;
+		if (y > 2 * height * w)
+			code |= GUARD_BOTTOM;
+		if (x < 0)
+			code |= LEFT;
+		if (x > width * w)
+			code |= RIGHT;
+		if (y < 0)
+			code |= TOP;
+		if (y > height * w)
+			code |= BOTTOM;
+		return code;
+	}
+
+	/**
+	 * Return true if a triangle with the given vertex outcodes is entirely
+	 * outside the viewport or the near or far plane.
+	 */
+	static boolean isOutside(int c0, int c1, int c2) {
+		return (c0 & c1 & c2) != 0;
+	}
+
+	/**
+	 * Return true if a triangle with the given vertex outcodes needs no
+	 * clipping.
+	 */
+	static boolean isInside(int c0, int c1, int c2) {
+		return ((c0 | c1 | c2) & CLIP_MASK) == 0;
+	}
+
+	/**
+	 * Clip a triangle against all clip planes that one of its vertices is
+	 * outside of. The resulting convex polygon can be read with
+	 * {@link #getVertex(int)}; it can be drawn as a fan around vertex 0.
+	 * 
+	 * @return the number of vertices of the clipped polygon, zero if nothing
+	 *         is left
+	 */
+	int clip(float v0[], float v1[], float v2[], int planes) {
+		System.arraycopy(v0, 0, polygon[0], 0, stride);
+		System.arraycopy(v1, 0, polygon[1], 0, stride);
+		System.arraycopy(v2, 0, polygon[2], 0, stride);
+		size = 3;
+
+		for (int plane = 1; plane <= GUARD_BOTTOM && size > 0; plane <<= 1) {
+			if ((planes & plane) != 0) {
+				clipPlane(plane);
+			}
+		}
+		return size;
+	}
+
+	float[] getVertex(int i) {
+		return polygon[i];
+	}
+
+	/**
+	 * Signed distance of a vertex to a clip plane, negative outside.
+	 */
+	private float distance(float v[], int plane) {
+		switch (plane) {
+		case NEAR:
+			return v[2];
+		case FAR:
+			return v[3] - v[2];
+		case GUARD_LEFT:
+			return v[0] + width * v[3];
+		case GUARD_RIGHT:
+			return 2 * width * v[3] - v[0];
+		case GUARD_TOP:
+			return v[1] + height * v[3];
+		default:
+			return 2 * height * v[3] - v[1];
+		}
+	}
+
+	/**
+	 * Sutherland-Hodgman clipping of the current polygon against one plane.
+	 * Intersections are always interpolated from the inside to the outside
+	 * vertex, so an edge shared by two triangles is cut at exactly the same
+	 * point for both, and the clipped mesh stays watertight.
+	 */
+	private void clipPlane(int plane) {
+		int n = 0;
+		float[] prev = polygon[size - 1];
+		float dPrev = distance(prev, plane);
+		for (int i = 0; i < size; i++) {
+			float[] cur = polygon[i];
+			float dCur = distance(cur, plane);
+			if (dCur >= 0) {
+				if (dPrev < 0) {
+					interpolate(cur, prev, dCur / (dCur - dPrev), scratch[n++]);
+				}
+				System.arraycopy(cur, 0, scratch[n++], 0, stride);
+			} else if (dPrev >= 0) {
+				interpolate(prev, cur, dPrev / (dPrev - dCur), scratch[n++]);
+			}
+			prev = cur;
+			dPrev = dCur;
+		}
+
+		float[][] tmp = polygon;
+		polygon = scratch;
+		scratch = tmp;
+		size = n;
+	}
+
+	private void interpolate(float a[], float b[], float t, float out[]) {
+		for (int k = 0; k < stride; k++) {
+			out[k] = a[k] + t * (b[k] - a[k]);
+		}
+	}
+}
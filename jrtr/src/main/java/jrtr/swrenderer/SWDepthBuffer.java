@@ -0,0 +1,297 @@
+package jrtr.swrenderer;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The depth buffer of the software renderer. It stores 1/w per pixel, larger
+ * values are closer to the viewer, and a cleared pixel has depth 0. The buffer
+ * is allocated once per viewport size and reused across frames.
+ * <p>
+ * Two formats are supported, see {@link SWRenderContext.DepthFormat}. The
+ * float format stores 1/w as is and is cleared with a parallel fill. The fixed
+ * point format stores 1/w in the low 24 bits of an int and a frame epoch in
+ * the high bits. A pixel written in an earlier epoch compares as farther than
+ * anything drawn in the current one, so clearing only increments the epoch.
+ * <p>
+ * On top of the per-pixel values the buffer keeps a coarse hierarchy level of
+ * BLOCK_SIZE x BLOCK_SIZE pixel blocks. For each block it tracks how many
+ * pixels are still empty and the farthest (smallest) stored 1/w, which lets
+ * the rasterizer skip blocks that are completely hidden. The block level is
+ * updated incrementally: writes count down the empty pixels, and the
+ * farthest value is recomputed, when it is queried, only for blocks marked
+ * dirty. A write marks its block dirty only if it fills an empty pixel or
+ * overwrites a value that may be the farthest of the block; writes in front
+ * of pixels that are closer than the farthest leave the block clean.
+ * <p>
+ * With multisampling the buffer holds several depth samples per pixel. The
+ * samples of pixel p are stored next to each other, at indices p * samples
+ * to p * samples + samples - 1, and the blocks count empty samples rather
+ * than pixels.
+ */
+class SWDepthBuffer {
+
+	// Blocks of the hierarchical level are 8x8 pixels, so they never straddle
+	// the screen tiles of the tiled rasterizer
+	static final int BLOCK_SHIFT = 3;
+	static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	// Epochs live in bits 24..30, the sign bit stays clear so that packed
+	// values can be compared as plain ints
+	private static final int MAX_EPOCH = 127;
+	private static final int DEPTH_BITS = 24;
+	private static final int DEPTH_MASK = (1 << DEPTH_BITS) - 1;
+
+	private final SWRenderContext.DepthFormat format;
+	private final float[] depth;
+	private final int[] fixedDepth;
+	private int epoch;
+	private int epochBits;
+	private float scale;
+
+	private final int width, height, samples;
+	private final int blocksX, blocksY;
+	private final float[] blockFar;
+	private final int[] blockFarFixed;
+	private final boolean[] blockDirty;
+	private final int[] blockEmpty;
+	private final int[] blockPixels;
+
+	SWDepthBuffer(int width, int height, SWRenderContext.DepthFormat format, int samples) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.samples = samples;
+		if (format == SWRenderContext.DepthFormat.FIXED24) {
+			depth = null;
+			fixedDepth = new int[width * height * samples];
+			epoch = MAX_EPOCH;
+		} else {
+			depth = new float[width * height * samples];
+			fixedDepth = null;
+		}
+		scale = DEPTH_MASK;
+
+		blocksX = (width + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+		blocksY = (height + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+		blockFar = new float[blocksX * blocksY];
+		blockFarFixed = new int[blocksX * blocksY];
+		blockDirty = new boolean[blocksX * blocksY];
+		blockEmpty = new int[blocksX * blocksY];
+		blockPixels = new int[blocksX * blocksY];
+		for (int by = 0; by < blocksY; by++) {
+			for (int bx = 0; bx < blocksX; bx++) {
+				int w = Math.min(BLOCK_SIZE, width - (bx << BLOCK_SHIFT));
+				int h = Math.min(BLOCK_SIZE, height - (by << BLOCK_SHIFT));
+				blockPixels[bx + by * blocksX] = w * h * samples;
+			}
+		}
+	}
+
+	int getBlocksX() {
+		return blocksX;
+	}
+
+	SWRenderContext.DepthFormat getFormat() {
+		return format;
+	}
+
+	int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Set the largest 1/w that needs to be resolved, i.e., one over the distance
+	 * of the near plane. Only used by the fixed point format, larger values are
+	 * clamped.
+	 */
+	void setRange(float maxWInv) {
+		scale = maxWInv > 0 ? DEPTH_MASK / maxWInv : DEPTH_MASK;
+	}
+
+	/**
+	 * Clear the buffer for a new frame. The float format is filled in
+	 * parallel bands on the given pool; the fixed point format advances the
+	 * epoch and only needs a real fill once every {@value #MAX_EPOCH} frames.
+	 */
+	void clear(ExecutorService pool, int numThreads) {
+		System.arraycopy(blockPixels, 0, blockEmpty, 0, blockPixels.length);
+		Arrays.fill(blockDirty, false);
+
+		if (fixedDepth != null) {
+			if (epoch == MAX_EPOCH) {
+				fill(pool, numThreads);
+				epoch = 0;
+			}
+			epoch++;
+			epochBits = epoch << DEPTH_BITS;
+		} else {
+			fill(pool, numThreads);
+		}
+	}
+
+	/**
+	 * Depth test a fragment with the given 1/w at sample index p, and store it
+	 * if it passes. Without multisampling the index is the pixel index.
+	 * 
+	 * @param block
+	 *            the hierarchy block that contains the sample
+	 * @return true if the fragment is closer than the stored depth
+	 */
+	boolean testAndSet(int p, int block, float wInv) {
+		if (depth != null) {
+			float old = depth[p];
+			if (wInv > old) {
+				depth[p] = wInv;
+				if (old == 0) {
+					blockEmpty[block]--;
+					blockDirty[block] = true;
+				} else if (old <= blockFar[block]) {
+					blockDirty[block] = true;
+				}
+				return true;
+			}
+			return false;
+		}
+
+		// Fragments so far away that 1/w rounds to 0 still pass against
+		// cleared pixels, as with the float format
+		int d = Math.max((int) (wInv * scale), 1);
+		int packed = epochBits | Math.min(d, DEPTH_MASK);
+		int old = fixedDepth[p];
+		if (packed > old) {
+			fixedDepth[p] = packed;
+			if ((old & ~DEPTH_MASK) != epochBits) {
+				blockEmpty[block]--;
+				blockDirty[block] = true;
+			} else if (old <= blockFarFixed[block]) {
+				blockDirty[block] = true;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the float depth values, or null for the fixed point format. The
+	 * vector raster kernel tests and writes a row of values at once, and then
+	 * reports its writes with {@link #recordWrites}; everything else goes
+	 * through {@link #testAndSet}.
+	 */
+	float[] getFloatDepth() {
+		return depth;
+	}
+
+	/**
+	 * Return the farthest 1/w of a block as last computed. A write over a
+	 * value not farther than this may change the farthest value.
+	 */
+	float getCachedFarthest(int block) {
+		return blockFar[block];
+	}
+
+	/**
+	 * Update the hierarchy level after writes to a block of the float depth
+	 * values, as {@link #testAndSet} would have: filled of them went to empty
+	 * samples, and overwroteFar is true if any overwrote a value not farther
+	 * than {@link #getCachedFarthest}.
+	 */
+	void recordWrites(int block, int filled, boolean overwroteFar) {
+		if (filled > 0 || overwroteFar)
+			blockDirty[block] = true;
+		blockEmpty[block] -= filled;
+	}
+
+	/**
+	 * Return the farthest 1/w stored in a block, or 0 while the block still
+	 * has empty pixels. A triangle whose largest 1/w is smaller than this is
+	 * hidden in the whole block.
+	 */
+	float farthest(int block) {
+		if (blockEmpty[block] > 0)
+			return 0;
+		if (blockDirty[block]) {
+			int x0 = (block % blocksX) << BLOCK_SHIFT;
+			int y0 = (block / blocksX) << BLOCK_SHIFT;
+			int x1 = Math.min(x0 + BLOCK_SIZE, width);
+			int y1 = Math.min(y0 + BLOCK_SIZE, height);
+			if (depth != null) {
+				float far = Float.MAX_VALUE;
+				for (int y = y0; y < y1; y++) {
+					for (int p = (x0 + y * width) * samples; p < (x1 + y * width) * samples; p++) {
+						far = Math.min(far, depth[p]);
+					}
+				}
+				blockFar[block] = far;
+			} else {
+				// The block is full, so all its samples carry the current epoch
+				int far = Integer.MAX_VALUE;
+				for (int y = y0; y < y1; y++) {
+					for (int p = (x0 + y * width) * samples; p < (x1 + y * width) * samples; p++) {
+						far = Math.min(far, fixedDepth[p]);
+					}
+				}
+				blockFarFixed[block] = far;
+				blockFar[block] = (far & DEPTH_MASK) / scale;
+			}
+			blockDirty[block] = false;
+		}
+		return blockFar[block];
+	}
+
+	/**
+	 * Return the stored 1/w at sample index p, or 0 if nothing was drawn there
+	 * this frame.
+	 */
+	float get(int p) {
+		if (depth != null)
+			return depth[p];
+
+		int packed = fixedDepth[p];
+		if ((packed & ~DEPTH_MASK) != epochBits)
+			return 0;
+		return (packed & DEPTH_MASK) / scale;
+	}
+
+	private void fill(ExecutorService pool, int numThreads) {
+		final int n = depth != null ? depth.length : fixedDepth.length;
+		if (numThreads <= 1 || pool == null) {
+			fillRange(0, n);
+			return;
+		}
+
+		LinkedList<Callable<Void>> bands = new LinkedList<Callable<Void>>();
+		final int band = (n + numThreads - 1) / numThreads;
+		for (int i = 0; i < numThreads; i++) {
+			final int from = Math.min(i * band, n);
+			final int to = Math.min(from + band, n);
+			bands.add(new Callable<Void>() {
+				public Void call() {
+					fillRange(from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : pool.invokeAll(bands)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void fillRange(int from, int to) {
+		if (depth != null) {
+			Arrays.fill(depth, from, to, 0.f);
+		} else {
+			Arrays.fill(fixedDepth, from, to, 0);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package jrtr.swrenderer;
+
+import java.util.Arrays;
+
+/**
+ * Diffuse shading with colored point lights. Each light contributes its color
+ * times 100 / d^2 times n.l, where d is the distance to the light. With an
+ * ambient weight a, the result is 1 - a times the lit albedo plus a times the
+ * albedo. The diffuse3 GLSL shader uses a = 1/5, which is the default; the
+ * diffuse2 shader has no ambient term.
+ * <p>
+ * Without lights only the ambient term remains. The kernels for one to four
+ * lights are separate subclasses with the lights in fields; only scenes with
+ * more lights, up to the eight that the software renderer passes, loop over
+ * arrays.
+ */
+public class SWDiffuseKernel implements SWShaderKernel {
+
+	private final float ambient, lit;
+
+	/**
+	 * Make the kernel of the diffuse3 shader, with an ambient weight of 1/5.
+	 */
+	public SWDiffuseKernel() {
+		this(0.2f);
+	}
+
+	public SWDiffuseKernel(float ambient) {
+		this.ambient = ambient;
+		lit = 1 - ambient;
+	}
+
+	public SWShaderKernel specialize(int numLights, float[] lightPositions, float[] lightColors) {
+		switch (numLights) {
+		case 0:
+			return new SWDiffuseKernel(ambient);
+		case 1:
+			return new OneLight(ambient, lightPositions, lightColors);
+		case 2:
+			return new TwoLights(ambient, lightPositions, lightColors);
+		case 3:
+			return new ThreeLights(ambient, lightPositions, lightColors);
+		case 4:
+			return new FourLights(ambient, lightPositions, lightColors);
+		default:
+			return new ManyLights(ambient, numLights, lightPositions, lightColors);
+		}
+	}
+
+	public int shade(SWFragment f) {
+		return SWFragment.pack(f.red * ambient, f.green * ambient, f.blue * ambient);
+	}
+
+	/**
+	 * Return 100 / d^2 times n.l for a point light at (lx, ly, lz), or 0 if
+	 * the light is behind the surface.
+	 */
+	static float intensity(SWFragment f, float lx, float ly, float lz) {
+		float dx = lx - f.x, dy = ly - f.y, dz = lz - f.z;
+		float d2 = dx * dx + dy * dy + dz * dz;
+		float ndotl = Math.max(f.nx * dx + f.ny * dy + f.nz * dz, 0);
+		return 100 * ndotl / (d2 * (float) Math.sqrt(d2));
+	}
+
+	int combine(SWFragment f, float red, float green, float blue) {
+		return SWFragment.pack(f.red * (red * lit + ambient), f.green * (green * lit + ambient),
+				f.blue * (blue * lit + ambient));
+	}
+
+	private static class OneLight extends SWDiffuseKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+
+		OneLight(float ambient, float[] p, float[] c) {
+			super(ambient);
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+		}
+
+		public int shade(SWFragment f) {
+			float s0 = intensity(f, x0, y0, z0);
+			return combine(f, s0 * r0, s0 * g0, s0 * b0);
+		}
+	}
+
+	private static class TwoLights extends SWDiffuseKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+
+		TwoLights(float ambient, float[] p, float[] c) {
+			super(ambient);
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+		}
+
+		public int shade(SWFragment f) {
+			float s0 = intensity(f, x0, y0, z0);
+			float s1 = intensity(f, x1, y1, z1);
+			return combine(f, s0 * r0 + s1 * r1, s0 * g0 + s1 * g1, s0 * b0 + s1 * b1);
+		}
+	}
+
+	private static class ThreeLights extends SWDiffuseKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+		private final float x2, y2, z2, r2, g2, b2;
+
+		ThreeLights(float ambient, float[] p, float[] c) {
+			super(ambient);
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+			x2 = p[6];
+			y2 = p[7];
+			z2 = p[8];
+			r2 = c[6];
+			g2 = c[7];
+			b2 = c[8];
+		}
+
+		public int shade(SWFragment f) {
+			float s0 = intensity(f, x0, y0, z0);
+			float s1 = intensity(f, x1, y1, z1);
+			float s2 = intensity(f, x2, y2, z2);
+			return combine(f, s0 * r0 + s1 * r1 + s2 * r2,
+					s0 * g0 + s1 * g1 + s2 * g2,
+					s0 * b0 + s1 * b1 + s2 * b2);
+		}
+	}
+
+	private static class FourLights extends SWDiffuseKernel {
+		private final float x0, y0, z0, r0, g0, b0;
+		private final float x1, y1, z1, r1, g1, b1;
+		private final float x2, y2, z2, r2, g2, b2;
+		private final float x3, y3, z3, r3, g3, b3;
+
+		FourLights(float ambient, float[] p, float[] c) {
+			super(ambient);
+			x0 = p[0];
+			y0 = p[1];
+			z0 = p[2];
+			r0 = c[0];
+			g0 = c[1];
+			b0 = c[2];
+			x1 = p[3];
+			y1 = p[4];
+			z1 = p[5];
+			r1 = c[3];
+			g1 = c[4];
+			b1 = c[5];
+			x2 = p[6];
+			y2 = p[7];
+			z2 = p[8];
+			r2 = c[6];
+			g2 = c[7];
+			b2 = c[8];
+			x3 = p[9];
+			y3 = p[10];
+			z3 = p[11];
+			r3 = c[9];
+			g3 = c[10];
+			b3 = c[11];
+		}
+
+		public int shade(SWFragment f) {
+			float s0 = intensity(f, x0, y0, z0);
+			float s1 = intensity(f, x1, y1, z1);
+			float s2 = intensity(f, x2, y2, z2);
+			float s3 = intensity(f, x3, y3, z3);
+			return combine(f, s0 * r0 + s1 * r1 + s2 * r2 + s3 * r3,
+					s0 * g0 + s1 * g1 + s2 * g2 + s3 * g3,
+					s0 * b0 + s1 * b1 + s2 * b2 + s3 * b3);
+		}
+	}
+
+	private static class ManyLights extends SWDiffuseKernel {
+		private final int n;
+		private final float[] position, color;
+
+		ManyLights(float ambient, int n, float[] p, float[] c) {
+			super(ambient);
+			this.n = n;
+			position = Arrays.copyOf(p, 3 * n);
+			color = Arrays.copyOf(c, 3 * n);
+		}
+
+		public int shade(SWFragment f) {
+			float red = 0, green = 0, blue = 0;
+			for (int l = 0; l < 3 * n; l += 3) {
+				float s = intensity(f, position[l], position[l + 1], position[l + 2]);
+				red += s * color[l];
+				green += s * color[l + 1];
+				blue += s * color[l + 2];
+			}
+			return combine(f, red, green, blue);
+		}
+	}
+}
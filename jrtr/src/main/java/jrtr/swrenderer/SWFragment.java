@@ -0,0 +1,38 @@
+package jrtr.swrenderer;
+
+/**
+ * The input of a {@link SWShaderKernel}: one fragment, with its position and
+ * unit length normal in camera coordinates and its albedo, which is the
+ * vertex color (white if the shape has none) modulated with the diffuse
+ * texture of the material.
+ */
+public class SWFragment {
+
+	public float x, y, z;
+	public float nx, ny, nz;
+	public float red, green, blue;
+
+	/**
+	 * Normalize the normal. Zero normals are left as they are.
+	 */
+	void normalize() {
+		float l = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (l > 0) {
+			l = 1 / l;
+			nx *= l;
+			ny *= l;
+			nz *= l;
+		}
+	}
+
+	/**
+	 * Pack a color into an RGB int as used by the color buffer, clamping each
+	 * component to [0, 1].
+	 */
+	public static int pack(float red, float green, float blue) {
+		int r = (int) (Math.min(Math.max(red, 0), 1) * 255);
+		int g = (int) (Math.min(Math.max(green, 0), 1) * 255);
+		int b = (int) (Math.min(Math.max(blue, 0), 1) * 255);
+		return (r << 16) | (g << 8) | b;
+	}
+}
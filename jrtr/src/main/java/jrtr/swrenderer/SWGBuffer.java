@@ -0,0 +1,92 @@
+package jrtr.swrenderer;
+
+/**
+ * The G-buffer of the deferred shading mode. The raster pass stores, for the
+ * closest fragment of every pixel, its camera space normal, its albedo (the
+ * vertex color modulated with the diffuse texture) and a material id, next
+ * to the 1/w in the depth buffer. The shading pass then lights every covered
+ * pixel exactly once, no matter how often it was overdrawn.
+ * <p>
+ * The attributes are stored as a structure of arrays, one flat array per
+ * component, so the shading pass streams through memory. Positions are not
+ * stored; the camera space position of a pixel is reconstructed from its
+ * screen coordinates and 1/w.
+ * <p>
+ * The material id of a lit pixel selects the {@link SWShaderKernel} that
+ * shades it. Id 0 marks unlit pixels, whose albedo is stored as their final
+ * RGB color. Lit pixels store the albedo with 10 bits per component, since
+ * bright lights amplify its quantization error.
+ */
+class SWGBuffer {
+
+	final int width, height;
+	final float[] normalX, normalY, normalZ;
+	final int[] albedo;
+	final byte[] material;
+
+	SWGBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int n = width * height;
+		normalX = new float[n];
+		normalY = new float[n];
+		normalZ = new float[n];
+		albedo = new int[n];
+		material = new byte[n];
+	}
+
+	/**
+	 * Store the attributes of the closest fragment at pixel p.
+	 */
+	void write(int p, float red, float green, float blue, float nx, float ny, float nz, byte id) {
+		normalX[p] = nx;
+		normalY[p] = ny;
+		normalZ[p] = nz;
+		albedo[p] = id == 0 ? SWFragment.pack(red, green, blue) : pack10(red, green, blue);
+		material[p] = id;
+	}
+
+	private static int pack10(float red, float green, float blue) {
+		int r = Math.round(Math.min(Math.max(red, 0), 1) * 1023);
+		int g = Math.round(Math.min(Math.max(green, 0), 1) * 1023);
+		int b = Math.round(Math.min(Math.max(blue, 0), 1) * 1023);
+		return (r << 20) | (g << 10) | b;
+	}
+
+	/**
+	 * The shading pass for the rows [y0, y1). Each lit pixel is shaded by the
+	 * kernel its material id refers to. Pixels where nothing was drawn are
+	 * cleared to black.
+	 */
+	void shadeRows(int y0, int y1, int[] colorPixels, SWDepthBuffer zBuffer, SWShaderKernel[] kernels,
+			SWUnprojection unprojection) {
+		SWFragment f = new SWFragment();
+		for (int y = y0; y < y1; y++) {
+			float sy = y + 0.5f;
+			int p = y * width;
+			for (int x = 0; x < width; x++, p++) {
+				float wInv = zBuffer.get(p);
+				if (wInv == 0) {
+					colorPixels[p] = 0;
+					continue;
+				}
+				int id = material[p] & 255;
+				if (id == 0) {
+					colorPixels[p] = albedo[p];
+					continue;
+				}
+
+				unprojection.apply(f, x + 0.5f, sy, 1 / wInv);
+				f.nx = normalX[p];
+				f.ny = normalY[p];
+				f.nz = normalZ[p];
+				f.normalize();
+				int a = albedo[p];
+				f.red = ((a >> 20) & 1023) * (1 / 1023.f);
+				f.green = ((a >> 10) & 1023) * (1 / 1023.f);
+				f.blue = (a & 1023) * (1 / 1023.f);
+				colorPixels[p] = kernels[id].shade(f);
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package jrtr.swrenderer;
+
+import jrtr.Light;
+
+import java.util.Iterator;
+
+/**
+ * The light sources of the current frame, copied out of the scene manager
+ * into flat arrays. Like the GL renderer, the software renderer uses at most
+ * MAX_LIGHTS lights, treats them as point lights and takes their positions to
+ * be in camera coordinates.
+ */
+class SWLights {
+
+	static final int MAX_LIGHTS = 8;
+
+	int count;
+	final float[] position = new float[3 * MAX_LIGHTS];
+	final float[] color = new float[3 * MAX_LIGHTS];
+
+	/**
+	 * Copy the lights of a frame. The iterator may be null.
+	 */
+	void load(Iterator<Light> itr) {
+		count = 0;
+		if (itr == null)
+			return;
+		while (itr.hasNext() && count < MAX_LIGHTS) {
+			Light l = itr.next();
+			position[count * 3] = l.position.x;
+			position[count * 3 + 1] = l.position.y;
+			position[count * 3 + 2] = l.position.z;
+			color[count * 3] = l.diffuse.x;
+			color[count * 3 + 1] = l.diffuse.y;
+			color[count * 3 + 2] = l.diffuse.z;
+			count++;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package jrtr.swrenderer;
+
+import jrtr.SceneManagerInterface;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a scene with the software renderer without any window, for
+ * example on a render farm. The frames are rendered into the reused
+ * framebuffer of a {@link SWRenderContext} and streamed out as raw RGB, PPM
+ * or PNG images, either into one {@link OutputStream} or into one file per
+ * frame.
+ * <p>
+ * PNG encoding is slow compared to rendering, so PNG frames are copied and
+ * encoded on a separate thread pool while the next frames are rendered. The
+ * encoded frames are still written in frame order.
+ */
+public class SWOffscreenRenderer {
+
+	/**
+	 * Output formats. RGB writes three bytes per pixel, row by row from the
+	 * top, without any header. PPM is the same data behind a binary PPM (P6)
+	 * header.
+	 */
+	public enum Format {
+		RGB, PPM, PNG
+	}
+
+	/**
+	 * Called before each frame is rendered, for example to animate the scene.
+	 */
+	public interface FrameListener {
+		void beforeFrame(int frame);
+	}
+
+	private SWRenderContext renderContext;
+	private int width, height;
+	private Format format = Format.PNG;
+	private FrameListener listener;
+
+	// PNG encoding. At most maxPendingFrames frames are encoded at a time;
+	// their images are recycled once the frames have been written.
+	private int encoderThreads;
+	private int maxPendingFrames;
+	private ExecutorService encoderPool;
+	private LinkedList<BufferedImage> freeImages = new LinkedList<BufferedImage>();
+
+	// RGB and PPM frames are encoded into this buffer, which is reused for
+	// every frame because the frame is written before the next one renders
+	private byte[] rgbBuffer;
+
+	public SWOffscreenRenderer(SceneManagerInterface sceneManager, int width, int height) {
+		this.width = width;
+		this.height = height;
+		renderContext = new SWRenderContext();
+		renderContext.setViewportSize(width, height);
+		renderContext.setSceneManager(sceneManager);
+		setEncoderThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * Return the render context, to change its settings. The renderer relies
+	 * on the default frame latency of zero, so that each frame is complete
+	 * when {@link #renderFrame()} returns; do not change it.
+	 */
+	public SWRenderContext getRenderContext() {
+		return renderContext;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public void setFrameListener(FrameListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Set the number of threads that encode PNG frames. Twice as many frames
+	 * may wait for encoding before rendering blocks.
+	 */
+	public void setEncoderThreads(int threads) {
+		if (encoderPool != null) {
+			encoderPool.shutdown();
+			encoderPool = null;
+		}
+		encoderThreads = Math.max(threads, 1);
+		maxPendingFrames = 2 * encoderThreads;
+	}
+
+	/**
+	 * Shut down the render context and the encoder threads. Call this when all
+	 * frames have been rendered; the renderer must not be used afterwards.
+	 */
+	public void dispose() {
+		renderContext.dispose();
+		if (encoderPool != null) {
+			encoderPool.shutdown();
+			encoderPool = null;
+		}
+	}
+
+	/**
+	 * Render a single frame. The returned image is the framebuffer of the
+	 * render context and is overwritten by the next frame.
+	 */
+	public BufferedImage renderFrame() {
+		renderContext.display();
+		return renderContext.getColorBuffer();
+	}
+
+	/**
+	 * Render the given number of frames and write them to a stream, one after
+	 * the other. The stream is not closed.
+	 */
+	public void render(int frames, final OutputStream out) throws IOException {
+		render(frames, new FrameSink() {
+			public void write(int frame, byte[] data) throws IOException {
+				out.write(data);
+			}
+		});
+		out.flush();
+	}
+
+	/**
+	 * Render the given number of frames and write each to its own file in the
+	 * given directory. The file name is made from the pattern with
+	 * {@link String#format}, with the frame number as the only argument, for
+	 * example "frame%04d.png".
+	 */
+	public void render(int frames, final File directory, final String namePattern) throws IOException {
+		render(frames, new FrameSink() {
+			public void write(int frame, byte[] data) throws IOException {
+				OutputStream out = new FileOutputStream(new File(directory, String.format(namePattern, frame)));
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Receives the encoded frames, in frame order.
+	 */
+	private interface FrameSink {
+		void write(int frame, byte[] data) throws IOException;
+	}
+
+	private void render(int frames, FrameSink sink) throws IOException {
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		LinkedList<BufferedImage> pendingImages = new LinkedList<BufferedImage>();
+		int written = 0;
+		try {
+			for (int frame = 0; frame < frames; frame++) {
+				if (listener != null) {
+					listener.beforeFrame(frame);
+				}
+				BufferedImage image = renderFrame();
+
+				if (format != Format.PNG) {
+					rgbBuffer = encodeRGB(image, format == Format.PPM, rgbBuffer);
+					sink.write(frame, rgbBuffer);
+					written++;
+					continue;
+				}
+
+				// Hand a copy of the frame to the encoder pool, so the framebuffer
+				// can be reused right away
+				while (pending.size() >= maxPendingFrames) {
+					sink.write(written++, finish(pending.removeFirst()));
+					freeImages.add(pendingImages.removeFirst());
+				}
+				final BufferedImage copy = copyFrame(image);
+				pendingImages.add(copy);
+				pending.add(getEncoderPool().submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return encodePNG(copy);
+					}
+				}));
+			}
+			while (!pending.isEmpty()) {
+				sink.write(written++, finish(pending.removeFirst()));
+				freeImages.add(pendingImages.removeFirst());
+			}
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Wait for an encoded frame.
+	 */
+	private byte[] finish(Future<byte[]> frame) throws IOException {
+		try {
+			return frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding a frame");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private BufferedImage copyFrame(BufferedImage image) {
+		BufferedImage copy = freeImages.isEmpty() ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+				: freeImages.removeFirst();
+		int[] src = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+		System.arraycopy(src, 0, dst, 0, src.length);
+		return copy;
+	}
+
+	private ExecutorService getEncoderPool() {
+		if (encoderPool == null) {
+			encoderPool = Executors.newFixedThreadPool(encoderThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SWOffscreenRenderer-encoder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return encoderPool;
+	}
+
+	/**
+	 * Encode a frame in the given format.
+	 */
+	static byte[] encode(BufferedImage image, Format format) throws IOException {
+		return format == Format.PNG ? encodePNG(image) : encodeRGB(image, format == Format.PPM, null);
+	}
+
+	private static byte[] encodePNG(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, "png", out))
+			throw new IOException("No PNG writer available");
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode a frame as RGB or PPM into the given buffer, or into a new one if
+	 * the buffer is null or has the wrong size. Returns the buffer used.
+	 */
+	private static byte[] encodeRGB(BufferedImage image, boolean ppmHeader, byte[] data) {
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		String ppm = "P6\n" + image.getWidth() + " " + image.getHeight() + "\n255\n";
+		byte[] header = ppmHeader ? ppm.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+		if (data == null || data.length != header.length + 3 * pixels.length) {
+			data = new byte[header.length + 3 * pixels.length];
+		}
+		System.arraycopy(header, 0, data, 0, header.length);
+		for (int i = 0, k = header.length; i < pixels.length; i++, k += 3) {
+			int p = pixels[i];
+			data[k] = (byte) (p >> 16);
+			data[k + 1] = (byte) (p >> 8);
+			data[k + 2] = (byte) p;
+		}
+		return data;
+	}
+}
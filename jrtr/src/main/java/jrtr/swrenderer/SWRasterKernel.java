@@ -0,0 +1,412 @@
+package jrtr.swrenderer;
+
+/**
+ * The per-pixel part of the software rasterizer. A kernel rasterizes one
+ * triangle inside one block of the hierarchical z-buffer, i.e., in a
+ * rectangle of at most BLOCK_SIZE x BLOCK_SIZE pixels. Each worker thread
+ * owns its own kernel, because the kernel keeps per-fragment scratch state.
+ * <p>
+ * The edge functions are fixed point integers, see {@link SWTriangle}. The
+ * coverage of a block is computed first, as one bit mask per row, by stepping
+ * the edge functions from the block corner: their y coefficient is added per
+ * row and their x coefficient per pixel, which is exact. 1/w and the
+ * attributes are only evaluated for covered pixels, as f(corner) + j * f1 +
+ * i * f0 where (i, j) is the pixel offset from the block corner. Either way a
+ * block gives the same values no matter which thread rasterizes it.
+ * <p>
+ * Attribute channels are only interpolated for pixels that pass the depth
+ * test. Their values at the block corner are computed once per block, and a
+ * pixel then costs two multiply-adds and one multiplication by w per channel.
+ * The interpolated channels are kept per block column, so that a kernel may
+ * instead test and interpolate a whole row of a block at once, see
+ * {@link #rasterizeRow}.
+ * <p>
+ * Lit triangles are shaded by their {@link SWShaderKernel}, with the camera
+ * space position of the fragment reconstructed from its 1/w.
+ * <p>
+ * The multisampling kernel tests coverage and depth per sample, but still
+ * shades only once per pixel and triangle.
+ * <p>
+ * In deferred mode the kernel does not write colors. It stores the albedo,
+ * normal and material id of the fragment in the G-buffer instead, and the
+ * lighting happens later, once per pixel.
+ * <p>
+ * {@link SWVectorRasterKernel} overrides the coverage, the depth test and the
+ * interpolation of a row with versions that use the JDK vector API. That
+ * kernel lives in a separate source set, because it needs the
+ * jdk.incubator.vector module to compile and run; {@link #create} probes for
+ * it at runtime and falls back to this scalar kernel. Both compute the same
+ * integer edge values and evaluate the float planes with the same operations
+ * in the same order, so they produce the same image.
+ */
+class SWRasterKernel {
+
+	static final int MAX_SAMPLES = 8;
+
+	// The vector kernel, or null if the vector API or the kernel class is
+	// not available at runtime
+	private static final Class<?> VECTOR_KERNEL = findVectorKernel();
+
+	// Attribute planes at the block corner, and interpolated attributes of
+	// the current row, channel c of block column i at c * BLOCK_SIZE + i.
+	// The fragment being shaded is in column fragmentColumn.
+	float[] attributeBase = new float[0];
+	float[] fragment = new float[0];
+	private int fragmentColumn;
+	private float fragmentW;
+	private float red, green, blue;
+	private float cornerX, cornerY;
+
+	// Multisampling: sample offsets from the pixel center, in pixels and in
+	// sub-pixel units, the per-sample color buffer, 1/w of the current
+	// triangle at the offsets, and the coverage of the current block per
+	// sample
+	private int samples = 1;
+	private float[] sampleX, sampleY;
+	private int[] subSampleX = { 0 }, subSampleY = { 0 };
+	private int[] sampleColors;
+	private final float[] sampleW = new float[MAX_SAMPLES];
+	private final int[][] sampleRows = new int[MAX_SAMPLES][SWDepthBuffer.BLOCK_SIZE];
+
+	// Coverage of the current block, one bit mask per row
+	private final int[] blockRows = new int[SWDepthBuffer.BLOCK_SIZE];
+
+	// Input of the shader kernel
+	private SWFragment shaderInput = new SWFragment();
+
+	private int[] colorPixels;
+	SWDepthBuffer zBuffer;
+	private SWGBuffer gBuffer;
+	private SWUnprojection unprojection;
+	private int width;
+
+	/**
+	 * Make a raster kernel. If vector is true and the vector kernel is
+	 * available, this returns a {@link SWVectorRasterKernel}, otherwise a
+	 * scalar kernel.
+	 */
+	static SWRasterKernel create(boolean vector) {
+		if (vector && VECTOR_KERNEL != null) {
+			try {
+				return (SWRasterKernel) VECTOR_KERNEL.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return new SWRasterKernel();
+	}
+
+	/**
+	 * Return true if the vector kernel can be used, i.e., the program runs with
+	 * --add-modules jdk.incubator.vector and the vector source set is on the
+	 * class path.
+	 */
+	static boolean isVectorAvailable() {
+		return VECTOR_KERNEL != null;
+	}
+
+	private static Class<?> findVectorKernel() {
+		try {
+			Class.forName("jdk.incubator.vector.LongVector");
+			return Class.forName("jrtr.swrenderer.SWVectorRasterKernel");
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Set the framebuffer the kernel draws into. If gBuffer is not null,
+	 * fragments go to the G-buffer instead of the color buffer.
+	 */
+	void setTarget(int[] colorPixels, SWDepthBuffer zBuffer, SWGBuffer gBuffer, SWUnprojection unprojection,
+			int width) {
+		this.colorPixels = colorPixels;
+		this.zBuffer = zBuffer;
+		this.gBuffer = gBuffer;
+		this.unprojection = unprojection;
+		this.width = width;
+	}
+
+	/**
+	 * Set the sample pattern and the per-sample color buffer for
+	 * multisampling. Pass null to turn multisampling off. This also converts
+	 * the offsets to sub-pixel units, see {@link #getSubSampleX()}.
+	 */
+	void setSamples(int[] sampleColors, float[] sampleX, float[] sampleY) {
+		this.sampleColors = sampleColors;
+		this.sampleX = sampleX;
+		this.sampleY = sampleY;
+		samples = sampleColors != null ? sampleX.length : 1;
+		if (subSampleX.length != samples) {
+			subSampleX = new int[samples];
+			subSampleY = new int[samples];
+		}
+		if (sampleColors != null) {
+			for (int s = 0; s < samples; s++) {
+				subSampleX[s] = Math.round(sampleX[s] * SWTriangle.SUBPIXELS);
+				subSampleY[s] = Math.round(sampleY[s] * SWTriangle.SUBPIXELS);
+			}
+		}
+	}
+
+	/**
+	 * The x offsets of the samples from the pixel center in sub-pixel units,
+	 * as passed to {@link SWTriangle#setup}; {0} without multisampling.
+	 */
+	int[] getSubSampleX() {
+		return subSampleX;
+	}
+
+	/**
+	 * The y offsets of the samples, see {@link #getSubSampleX()}.
+	 */
+	int[] getSubSampleY() {
+		return subSampleY;
+	}
+
+	/**
+	 * Rasterize triangle t in the pixel rectangle [x0, x1) x [y0, y1), which
+	 * lies inside the given z-buffer block.
+	 */
+	void rasterizeBlock(SWTriangle t, int x0, int x1, int y0, int y1, int block) {
+		float x = x0 + 0.5f;
+		float y = y0 + 0.5f;
+		setupAttributes(t, x, y);
+		long aBase = t.a0 * x0 + t.a1 * y0 + t.a2;
+		long bBase = t.b0 * x0 + t.b1 * y0 + t.b2;
+		long gBase = t.g0 * x0 + t.g1 * y0 + t.g2;
+		float wBase = t.w0 * x + t.w1 * y + t.w2;
+
+		int cols = x1 - x0;
+		int rows = y1 - y0;
+		coverBlock(t, aBase, bBase, gBase, cols, rows, blockRows);
+		for (int j = 0; j < rows; j++) {
+			int covered = blockRows[j];
+			if (covered == 0)
+				continue;
+			float wRow = wBase + j * t.w1;
+			rasterizeRow(t, x0 + (y0 + j) * width, block, cols, j, wRow, covered);
+		}
+	}
+
+	/**
+	 * Depth test and shade the covered pixels of row j of a block, given as a
+	 * bit mask. p is the index of the first pixel of the row, the block is
+	 * cols pixels wide, and pixel i has 1/w = wRow + i * t.w0.
+	 */
+	void rasterizeRow(SWTriangle t, int p, int block, int cols, int j, float wRow, int covered) {
+		do {
+			int i = Integer.numberOfTrailingZeros(covered);
+			covered &= covered - 1;
+			float w = wRow + i * t.w0;
+			if (zBuffer.testAndSet(p + i, block, w))
+				shade(t, p + i, i, j, w, false);
+		} while (covered != 0);
+	}
+
+	/**
+	 * Compute the coverage of a rectangle of cols x rows pixels, at most the
+	 * block size, as one bit mask per row: bit i of covered[j] is set if pixel
+	 * (i, j) lies inside the triangle. a, b and g are the edge functions at
+	 * the first pixel.
+	 */
+	void coverBlock(SWTriangle t, long a, long b, long g, int cols, int rows, int[] covered) {
+		for (int j = 0; j < rows; j++, a += t.a1, b += t.b1, g += t.g1) {
+			long ea = a, eb = b, eg = g;
+			int mask = 0;
+			for (int i = 0; i < cols; i++) {
+				// All three are positive if the sign bits of their negations
+				// are all set; this avoids a branch per pixel
+				mask |= (int) ((-ea & -eb & -eg) >>> 63) << i;
+				ea += t.a0;
+				eb += t.b0;
+				eg += t.g0;
+			}
+			covered[j] = mask;
+		}
+	}
+
+	/**
+	 * Multisampled version of {@link #rasterizeBlock}. The edge functions and
+	 * 1/w are evaluated at every sample of a pixel, and each sample is depth
+	 * tested on its own. If any sample passes, the pixel is shaded once, at
+	 * its center if the center lies inside the triangle and at the first
+	 * covered sample otherwise, and the color goes to all samples that passed.
+	 */
+	void rasterizeBlockMultisample(SWTriangle t, int x0, int x1, int y0, int y1, int block) {
+		float x = x0 + 0.5f;
+		float y = y0 + 0.5f;
+		setupAttributes(t, x, y);
+		long aBase = t.a0 * x0 + t.a1 * y0 + t.a2;
+		long bBase = t.b0 * x0 + t.b1 * y0 + t.b2;
+		long gBase = t.g0 * x0 + t.g1 * y0 + t.g2;
+		float wBase = t.w0 * x + t.w1 * y + t.w2;
+		int n = samples;
+		int cols = x1 - x0;
+		int rows = y1 - y0;
+		for (int s = 0; s < n; s++) {
+			long sa = (subSampleX[s] * t.a0 + subSampleY[s] * t.a1) / SWTriangle.SUBPIXELS;
+			long sb = (subSampleX[s] * t.b0 + subSampleY[s] * t.b1) / SWTriangle.SUBPIXELS;
+			long sg = (subSampleX[s] * t.g0 + subSampleY[s] * t.g1) / SWTriangle.SUBPIXELS;
+			sampleW[s] = sampleX[s] * t.w0 + sampleY[s] * t.w1;
+			coverBlock(t, aBase + sa, bBase + sb, gBase + sg, cols, rows, sampleRows[s]);
+		}
+
+		for (int j = 0; j < rows; j++) {
+			int covered = 0;
+			for (int s = 0; s < n; s++) {
+				covered |= sampleRows[s][j];
+			}
+			if (covered == 0)
+				continue;
+			float fj = j;
+			float wRow = wBase + fj * t.w1;
+			int row = x0 + (y0 + j) * width;
+			do {
+				int i = Integer.numberOfTrailingZeros(covered);
+				covered &= covered - 1;
+
+				float fi = i;
+				float w = wRow + fi * t.w0;
+				int q = (row + i) * n;
+				int mask = 0;
+				for (int s = 0; s < n; s++) {
+					if ((sampleRows[s][j] & (1 << i)) != 0 && zBuffer.testAndSet(q + s, block, w + sampleW[s]))
+						mask |= 1 << s;
+				}
+				if (mask == 0)
+					continue;
+
+				float si = fi, sj = fj;
+				long a = aBase + j * t.a1 + i * t.a0;
+				long b = bBase + j * t.b1 + i * t.b0;
+				long g = gBase + j * t.g1 + i * t.g0;
+				if (!(a > 0 && b > 0 && g > 0)) {
+					int s = Integer.numberOfTrailingZeros(mask);
+					si += sampleX[s];
+					sj += sampleY[s];
+					w += sampleW[s];
+				}
+				interpolate(t, i, si, sj, w, false);
+				int c = color(t, si, sj);
+				for (int s = 0; s < n; s++) {
+					if ((mask & (1 << s)) != 0)
+						sampleColors[q + s] = c;
+				}
+			} while (covered != 0);
+		}
+	}
+
+	/**
+	 * Evaluate the attribute planes of t at the block corner (x, y).
+	 */
+	private void setupAttributes(SWTriangle t, float x, float y) {
+		int n = t.numChannels;
+		if (attributeBase.length < n) {
+			attributeBase = new float[n];
+		}
+		if (fragment.length < n * SWDepthBuffer.BLOCK_SIZE) {
+			fragment = new float[n * SWDepthBuffer.BLOCK_SIZE];
+		}
+		cornerX = x;
+		cornerY = y;
+		for (int c = 0; c < n; c++) {
+			attributeBase[c] = t.c0[c] * x + t.c1[c] * y + t.c2[c];
+		}
+	}
+
+	/**
+	 * Shade a pixel that passed the depth test. (i, j) is the offset of the
+	 * pixel from the block corner.
+	 * 
+	 * @param interpolated
+	 *            whether the channels of the pixel are already in fragment
+	 *            column i
+	 */
+	void shade(SWTriangle t, int p, int i, int j, float wInv, boolean interpolated) {
+		interpolate(t, i, i, j, wInv, interpolated);
+		if (gBuffer != null) {
+			int nc = t.normalOffset;
+			if (nc >= 0 && t.materialId != 0) {
+				gBuffer.write(p, red, green, blue, channel(nc), channel(nc + 1), channel(nc + 2), t.materialId);
+			} else {
+				gBuffer.write(p, red, green, blue, 0, 0, 0, (byte) 0);
+			}
+			return;
+		}
+		colorPixels[p] = color(t, i, j);
+	}
+
+	/**
+	 * Interpolate all attribute channels, perspective correctly, at offset
+	 * (fi, fj) from the block corner into fragment column i, unless they are
+	 * already there, and compute the albedo of the fragment.
+	 */
+	private void interpolate(SWTriangle t, int i, float fi, float fj, float wInv, boolean interpolated) {
+		float w = 1 / wInv;
+		fragmentW = w;
+		fragmentColumn = i;
+		if (!interpolated) {
+			for (int c = 0; c < t.numChannels; c++) {
+				fragment[c * SWDepthBuffer.BLOCK_SIZE + i] = (attributeBase[c] + fj * t.c1[c] + fi * t.c0[c]) * w;
+			}
+		}
+
+		red = 1;
+		green = 1;
+		blue = 1;
+		if (t.colorOffset >= 0) {
+			red = channel(t.colorOffset);
+			green = channel(t.colorOffset + 1);
+			blue = channel(t.colorOffset + 2);
+		}
+
+		// Modulate with the diffuse texture. The level of detail comes from the
+		// screen space derivatives of the perspective correct texture
+		// coordinates, d(u/w * w)/dx = (du/w/dx - u * d1/w/dx) * w.
+		SWTexture texture = t.texture;
+		if (texture != null && t.texCoordOffset >= 0) {
+			int uc = t.texCoordOffset;
+			float u = channel(uc);
+			float v = channel(uc + 1);
+			float lod = 0;
+			if (texture.usesMipmaps()) {
+				lod = texture.lod((t.c0[uc] - u * t.w0) * w, (t.c0[uc + 1] - v * t.w0) * w,
+						(t.c1[uc] - u * t.w1) * w, (t.c1[uc + 1] - v * t.w1) * w);
+			}
+			int texel = texture.sample(u, v, lod);
+			red *= ((texel >> 16) & 255) * (1 / 255.f);
+			green *= ((texel >> 8) & 255) * (1 / 255.f);
+			blue *= (texel & 255) * (1 / 255.f);
+		}
+	}
+
+	/**
+	 * Return channel c of the current fragment.
+	 */
+	private float channel(int c) {
+		return fragment[c * SWDepthBuffer.BLOCK_SIZE + fragmentColumn];
+	}
+
+	/**
+	 * Return the color of the interpolated fragment at offset (fi, fj) from
+	 * the block corner, running the shader kernel of lit triangles.
+	 */
+	private int color(SWTriangle t, float fi, float fj) {
+		if (t.shader != null) {
+			SWFragment f = shaderInput;
+			unprojection.apply(f, cornerX + fi, cornerY + fj, fragmentW);
+			f.nx = channel(t.normalOffset);
+			f.ny = channel(t.normalOffset + 1);
+			f.nz = channel(t.normalOffset + 2);
+			f.normalize();
+			f.red = red;
+			f.green = green;
+			f.blue = blue;
+			return t.shader.shade(f);
+		}
+		return SWFragment.pack(red, green, blue);
+	}
+}
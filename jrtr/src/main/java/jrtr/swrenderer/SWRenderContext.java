@@ -11,8 +11,19 @@ import jrtr.Material;
 
 import java.awt.image.*;
 import javax.vecmath.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A skeleton for a software renderer. It works in combination with
@@ -24,29 +35,181 @@ import java.util.ListIterator;
  */
 public class SWRenderContext implements RenderContext {
 
+	/**
+	 * Storage format of the depth buffer. FLOAT stores 1/w as a float and is
+	 * cleared every frame. FIXED24 stores 1/w in 24 bit fixed point, scaled to
+	 * the near plane of the projection, and tags each value with a frame epoch
+	 * so the buffer needs no per-frame clear, at the cost of precision.
+	 */
+	public enum DepthFormat {
+		FLOAT, FIXED24
+	}
+
+	/**
+	 * Which triangles to discard based on their winding. Front facing
+	 * triangles are counter-clockwise on screen, as in OpenGL.
+	 */
+	public enum CullMode {
+		NONE, BACK, FRONT
+	}
+
+	/**
+	 * Notified when a pipelined frame has completed and should be shown, see
+	 * {@link SWRenderContext#setFrameListener}.
+	 */
+	public interface FrameListener {
+		void frameCompleted();
+	}
+
 	private SceneManagerInterface sceneManager;
-	private BufferedImage colorBuffer;
-	private int[] zeroColorBuffer;
+	private int[] colorPixels;
+
+	// Pipelined frames. Up to frameLatency frames are rendered on the frame
+	// thread while the last completed frame is presented. Completed frames
+	// are presented by the frame thread, in order. The color buffers form a
+	// ring with one more entry than the latency, so neither a frame in flight
+	// nor the presented frame is ever overwritten.
+	private int frameLatency;
+	private BufferedImage[] colorBuffers;
+	private int nextColorBuffer;
+	private volatile BufferedImage presentedBuffer;
+	private ExecutorService frameThread;
+	private LinkedList<Future<BufferedImage>> pendingFrames;
+	private volatile int submittedFrames;
+	private volatile FrameListener frameListener;
+	private volatile boolean presentRequested;
 	private int width, height;
 
 	// Rendering pipeline state variables
 	private Matrix4f viewportMatrix;
 	private Matrix4f projectionMatrix;
-	private float[] vertexColor;
-	private float[] vertexNormal;
-	private float[] vertexTexCoords;
-	private float[] zBuffer;
+	private SWDepthBuffer zBuffer;
+	private DepthFormat depthFormat = DepthFormat.FLOAT;
+
+	// Face culling, per material with a default for all other shapes
+	private CullMode defaultCullMode = CullMode.NONE;
+	private WeakHashMap<Material, CullMode> cullModes;
+	private CullMode cullMode;
+
+	// Output of the vertex stage, one entry per vertex of the current render
+	// item. Positions are after the viewport transformation (x, y, z, w). All
+	// other vertex elements are interleaved into numChannels attribute
+	// channels per vertex; the offsets of the known semantics are -1 if the
+	// render item does not have them.
+	private float[] vertexPositions;
+	private float[] vertexAttributes;
+	private int[] vertexOutcodes;
+	private int numChannels;
+	private int colorOffset, normalOffset, texCoordOffset;
+
+	// Vertices of the triangle that is passed to drawTriangle, and of the
+	// triangle that is passed to the clipper
+	private float[][] triangleVertices;
+	private float[][] clipVertices;
+	private SWClipper clipper;
+
+	// Tiled rendering state. Triangles are binned into TILE_SIZE x TILE_SIZE
+	// screen tiles during draw() and rasterized in parallel in endFrame().
+	private static final int TILE_SIZE = 64;
+	private boolean tiled;
+	private int numThreads;
+	private ExecutorService tilePool;
+	private int tilesX, tilesY;
+	private ArrayList<SWTriangle> triangles;
+	private int numTriangles;
+	private SWTriangle serialTriangle;
+	private int[][] bins;
+	private int[] binSizes;
+	private AtomicInteger nextTile;
+
+	// One raster kernel per worker thread; the serial path uses the first.
+	// The kernels use the vector API if it is available and not turned off.
+	private SWRasterKernel[] kernels;
+	private boolean vectorRasterization = true;
+
+	// Shading. The shader kernel of a shape comes from its material or, if
+	// the material has no shader, from useShader(). Kernels are specialized
+	// for the lights once per frame.
+	private SWShaderKernel activeShader;
+	private SWLights lights;
+	private HashMap<SWShaderKernel, SWShaderKernel> specializedShaders;
+	private SWUnprojection unprojection;
+	private SWShaderKernel shader;
+
+	// Deferred shading. The raster pass fills the G-buffer, and endFrame()
+	// shades it. The kernels used in a frame get consecutive material ids,
+	// 0 stands for unlit.
+	private boolean deferred;
+	private SWGBuffer gBuffer;
+	private HashMap<SWShaderKernel, Integer> materialIds;
+	private SWShaderKernel[] materialShaders;
+	private byte materialId;
+
+	// Multisampling. Sample offsets from the pixel center, on rotated grids,
+	// for 2, 4 and 8 samples per pixel. The samples are resolved into the
+	// color buffer in endFrame().
+	private static final float[][] SAMPLES_2 = { { .25f, .25f }, { -.25f, -.25f } };
+	private static final float[][] SAMPLES_4 = { { -.125f, -.375f }, { .375f, -.125f }, { -.375f, .125f },
+			{ .125f, .375f } };
+	private static final float[][] SAMPLES_8 = { { .0625f, -.1875f }, { -.0625f, .1875f }, { .3125f, .0625f },
+			{ -.1875f, -.3125f }, { -.3125f, .3125f }, { -.4375f, -.0625f }, { .1875f, .4375f },
+			{ .4375f, -.4375f } };
+	private int samples = 1;
+	private float[] sampleX, sampleY;
+	private int[] sampleColors;
+
+	// Sample offsets of the current frame in sub-pixel units, for triangle
+	// setup, as computed by the raster kernels
+	private int[] subSampleX = { 0 }, subSampleY = { 0 };
 
 	public SWRenderContext() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Make a render context that uses the given number of threads for tiled
+	 * rasterization and the other per-frame passes. With one thread, the
+	 * context renders on the calling thread only, which suits renderers that
+	 * run several contexts in parallel.
+	 */
+	public SWRenderContext(int threads) {
 		// Initialize rendering pipeline state variables to default values
 		projectionMatrix = new Matrix4f();
 		viewportMatrix = new Matrix4f();
-		vertexColor = new float[3];
-		vertexColor[0] = 1.f;
-		vertexColor[1] = 1.f;
-		vertexColor[2] = 1.f;
-		vertexNormal = new float[3];
-		vertexTexCoords = new float[2];
+		triangleVertices = new float[3][4];
+		clipVertices = new float[3][4];
+		clipper = new SWClipper(4);
+		cullModes = new WeakHashMap<Material, CullMode>();
+		lights = new SWLights();
+		specializedShaders = new HashMap<SWShaderKernel, SWShaderKernel>();
+		unprojection = new SWUnprojection();
+		materialIds = new HashMap<SWShaderKernel, Integer>();
+		materialShaders = new SWShaderKernel[256];
+
+		// Use the given number of threads for tiled rendering. The worker
+		// threads are daemons so they do not keep the application alive.
+		numThreads = Math.max(threads, 1);
+		tiled = numThreads > 1;
+		if (numThreads > 1) {
+			tilePool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SWRenderContext-tile");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		triangles = new ArrayList<SWTriangle>();
+		serialTriangle = new SWTriangle();
+		nextTile = new AtomicInteger();
+		kernels = new SWRasterKernel[numThreads];
+		makeKernels();
+	}
+
+	private void makeKernels() {
+		for (int i = 0; i < numThreads; i++) {
+			kernels[i] = SWRasterKernel.create(vectorRasterization);
+		}
 	}
 
 	public void setSceneManager(SceneManagerInterface sceneManager) {
@@ -56,11 +219,53 @@ public class SWRenderContext implements RenderContext {
 	/**
 	 * This is called by the SWRenderPanel to render the scene to the software frame
 	 * buffer.
+	 * <p>
+	 * With a frame latency of zero the frame is rendered before this method
+	 * returns. Otherwise the frame is queued on the frame thread, and this
+	 * method only blocks while the maximum number of frames is in flight. The
+	 * first call after the frame listener was notified queues no frame, see
+	 * {@link #setFrameListener}.
 	 */
 	public void display() {
 		if (sceneManager == null)
 			return;
 
+		if (frameLatency == 0) {
+			presentedBuffer = renderFrame(nextColorBuffer());
+			return;
+		}
+
+		// This call shows the frame the listener was notified of
+		if (presentRequested) {
+			presentRequested = false;
+			while (!pendingFrames.isEmpty() && pendingFrames.getFirst().isDone()) {
+				waitForFrame(pendingFrames.removeFirst());
+			}
+			return;
+		}
+
+		// Reap all completed frames, and wait until a frame slot is free
+		while (!pendingFrames.isEmpty() && (pendingFrames.size() >= frameLatency || pendingFrames.getFirst().isDone())) {
+			waitForFrame(pendingFrames.removeFirst());
+		}
+
+		final BufferedImage target = nextColorBuffer();
+		final int frame = ++submittedFrames;
+		pendingFrames.add(frameThread.submit(new Callable<BufferedImage>() {
+			public BufferedImage call() {
+				renderFrame(target);
+				presentFrame(target, frame);
+				return target;
+			}
+		}));
+	}
+
+	/**
+	 * Render one complete frame into the given color buffer.
+	 */
+	private BufferedImage renderFrame(BufferedImage target) {
+		colorPixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+
 		beginFrame();
 
 		SceneManagerIterator iterator = sceneManager.iterator();
@@ -69,14 +274,139 @@ public class SWRenderContext implements RenderContext {
 		}
 
 		endFrame();
+		return target;
+	}
+
+	private BufferedImage nextColorBuffer() {
+		BufferedImage b = colorBuffers[nextColorBuffer];
+		nextColorBuffer = (nextColorBuffer + 1) % colorBuffers.length;
+		return b;
+	}
+
+	/**
+	 * Make a completed frame the presented frame. This runs on the frame
+	 * thread. If the frame is the last one submitted, the frame listener is
+	 * notified, since nothing else would show it.
+	 */
+	private void presentFrame(BufferedImage target, int frame) {
+		presentedBuffer = target;
+		FrameListener listener = frameListener;
+		if (listener != null && frame == submittedFrames) {
+			presentRequested = true;
+			listener.frameCompleted();
+		}
+	}
+
+	/**
+	 * Wait for a frame to complete, and pass on any exception it threw.
+	 */
+	private void waitForFrame(Future<BufferedImage> frame) {
+		try {
+			frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Wait for all frames in flight; the last one is then presented.
+	 */
+	private void finishFrames() {
+		if (pendingFrames == null)
+			return;
+		while (!pendingFrames.isEmpty()) {
+			waitForFrame(pendingFrames.removeFirst());
+		}
 	}
 
 	/**
 	 * This is called by the {@link SWJPanel} to obtain the color buffer that will
-	 * be displayed.
+	 * be displayed. This is always the last completed frame, which is not
+	 * modified until a later frame has been presented.
 	 */
 	public BufferedImage getColorBuffer() {
-		return colorBuffer;
+		return presentedBuffer;
+	}
+
+	/**
+	 * Set how many frames may be rendered ahead of the presented one. With
+	 * latency 0 (the default) every frame is rendered synchronously in
+	 * {@link #display()}. With latency n, up to n frames are rendered on a
+	 * background thread while the last completed frame is shown.
+	 */
+	public void setFrameLatency(int latency) {
+		finishFrames();
+		presentRequested = false;
+		frameLatency = Math.max(latency, 0);
+		if (frameLatency > 0 && frameThread == null) {
+			frameThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SWRenderContext-frame");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pendingFrames = new LinkedList<Future<BufferedImage>>();
+		} else if (frameLatency == 0) {
+			shutdownFrameThread();
+		}
+		if (width > 0 && height > 0 && colorBuffers.length != frameLatency + 1) {
+			allocateColorBuffers();
+		}
+	}
+
+	public int getFrameLatency() {
+		return frameLatency;
+	}
+
+	/**
+	 * Set the listener that is notified when a pipelined frame completes and
+	 * needs to be shown, or null for none. A frame completes after the
+	 * display() call that queued it has returned, so without a listener it is
+	 * only shown when display() is called again. The listener is called on
+	 * the frame thread; a render panel typically hooks it to request a
+	 * repaint. It is never called with a frame latency of zero.
+	 * <p>
+	 * The next display() call after a notification only reaps the completed
+	 * frames and returns, so the repaint the listener requests shows the
+	 * completed frame rather than queuing another one, which would complete
+	 * and notify the listener again.
+	 */
+	public void setFrameListener(FrameListener listener) {
+		frameListener = listener;
+	}
+
+	/**
+	 * Finish the frames in flight and shut down the tile and frame threads.
+	 * Call this when the context is no longer needed; it must not be used
+	 * afterwards.
+	 */
+	public void dispose() {
+		finishFrames();
+		if (tilePool != null) {
+			tilePool.shutdown();
+			tilePool = null;
+		}
+		shutdownFrameThread();
+	}
+
+	private void shutdownFrameThread() {
+		if (frameThread != null) {
+			frameThread.shutdown();
+			frameThread = null;
+			pendingFrames = null;
+		}
+	}
+
+	private void allocateColorBuffers() {
+		colorBuffers = new BufferedImage[frameLatency + 1];
+		for (int i = 0; i < colorBuffers.length; i++) {
+			colorBuffers[i] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		nextColorBuffer = 0;
+		presentedBuffer = colorBuffers[colorBuffers.length - 1];
 	}
 
 	/**
@@ -84,6 +414,7 @@ public class SWRenderContext implements RenderContext {
 	 * viewport matrix, which you need to reset here.
 	 */
 	public void setViewportSize(int width, int height) {
+		finishFrames();
 		this.width = width;
 		this.height = height;
 
@@ -98,11 +429,18 @@ public class SWRenderContext implements RenderContext {
 		viewportMatrix.setElement(1, 3, (float) height / 2.f);
 		viewportMatrix.setElement(2, 2, .5f);
 		viewportMatrix.setElement(2, 3, .5f);
+		clipper.setViewportSize(width, height);
+
+		// Allocate framebuffers. The rasterizer writes packed RGB values directly
+		// into the int array backing the images.
+		allocateColorBuffers();
+		zBuffer = new SWDepthBuffer(width, height, depthFormat, activeSamples());
 
-		// Allocate framebuffer
-		colorBuffer = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		zeroColorBuffer = new int[width * height];
-		zBuffer = new float[width * height];
+		// Allocate one triangle bin per screen tile
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		bins = new int[tilesX * tilesY][16];
+		binSizes = new int[tilesX * tilesY];
 	}
 
 	/**
@@ -110,202 +448,702 @@ public class SWRenderContext implements RenderContext {
 	 */
 	private void beginFrame() {
 		projectionMatrix = sceneManager.getFrustum().getProjectionMatrix();
+		unprojection.set(projectionMatrix, width, height);
+		lights.load(sceneManager.lightIterator());
+		specializedShaders.clear();
 
-		// Clear framebuffer
-		colorBuffer.setRGB(0, 0, width, height, zeroColorBuffer, 0, width);
-		zBuffer = new float[width * height];
+		// Clear framebuffer. In deferred mode the shading pass writes every
+		// pixel, so only the depth buffer needs to be cleared.
+		if (deferred) {
+			if (gBuffer == null || gBuffer.width != width || gBuffer.height != height) {
+				gBuffer = new SWGBuffer(width, height);
+			}
+			materialIds.clear();
+		} else {
+			Arrays.fill(colorPixels, 0);
+		}
+		int n = activeSamples();
+		if (zBuffer.getSamples() != n) {
+			zBuffer = new SWDepthBuffer(width, height, depthFormat, n);
+		}
+		if (n > 1) {
+			if (sampleColors == null || sampleColors.length != width * height * n) {
+				sampleColors = new int[width * height * n];
+			} else {
+				Arrays.fill(sampleColors, 0);
+			}
+		}
+		for (SWRasterKernel kernel : kernels) {
+			kernel.setTarget(colorPixels, zBuffer, deferred ? gBuffer : null, unprojection, width);
+			kernel.setSamples(n > 1 ? sampleColors : null, sampleX, sampleY);
+		}
+		subSampleX = kernels[0].getSubSampleX();
+		subSampleY = kernels[0].getSubSampleY();
+		zBuffer.setRange(nearPlaneWInv(projectionMatrix));
+		zBuffer.clear(tilePool, numThreads);
+
+		// Empty the tile bins
+		numTriangles = 0;
+		Arrays.fill(binSizes, 0);
 	}
 
+	/**
+	 * In tiled mode all triangles of the frame have been binned by now, so this
+	 * is where they are rasterized. In deferred mode this is followed by the
+	 * shading pass, with multisampling by the resolve of the samples.
+	 */
 	private void endFrame() {
+		if (tiled) {
+			rasterizeTiles();
+		}
+		if (deferred) {
+			forEachBand(new RowTask() {
+				public void run(int from, int to) {
+					gBuffer.shadeRows(from, to, colorPixels, zBuffer, materialShaders, unprojection);
+				}
+			});
+		} else if (activeSamples() > 1) {
+			forEachBand(new RowTask() {
+				public void run(int from, int to) {
+					resolveRows(from, to);
+				}
+			});
+		}
 	}
 
 	/**
-	 * The main rendering method. This collects all information necessary to render
-	 * each triangle and calls @drawTriangle to perform the rasterization.
+	 * Average the color samples of the rows [from, to) into the color buffer.
+	 */
+	private void resolveRows(int from, int to) {
+		int n = activeSamples();
+		for (int p = from * width; p < to * width; p++) {
+			int red = 0, green = 0, blue = 0;
+			for (int q = p * n; q < (p + 1) * n; q++) {
+				int c = sampleColors[q];
+				red += (c >> 16) & 255;
+				green += (c >> 8) & 255;
+				blue += c & 255;
+			}
+			colorPixels[p] = ((red / n) << 16) | ((green / n) << 8) | (blue / n);
+		}
+	}
+
+	/**
+	 * A task on a band of image rows.
+	 */
+	private interface RowTask {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Split the rows of the image into one band per worker thread, and run the
+	 * task on the bands in parallel.
+	 */
+	private void forEachBand(final RowTask task) {
+		if (numThreads <= 1) {
+			task.run(0, height);
+			return;
+		}
+
+		LinkedList<Callable<Void>> bands = new LinkedList<Callable<Void>>();
+		final int band = (height + numThreads - 1) / numThreads;
+		for (int i = 0; i < numThreads; i++) {
+			final int from = Math.min(i * band, height);
+			final int to = Math.min(from + band, height);
+			bands.add(new Callable<Void>() {
+				public Void call() {
+					task.run(from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : tilePool.invokeAll(bands)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * The main rendering method. This runs the vertex stage, which transforms
+	 * every vertex of the render item once, and then assembles the triangles
+	 * from the transformed vertices and passes them on to the clip stage.
 	 */
 	private void draw(RenderItem renderItem) {
 		VertexData vertexData = renderItem.getShape().getVertexData();
-		LinkedList<VertexData.VertexElement> vertexElements = vertexData.getElements();
 		int indices[] = vertexData.getIndices();
 
 		// Don't draw if there are no indices
 		if (indices == null)
 			return;
 
-		// Vertex attributes for a triangle
-		float[][] colors = new float[3][3];
-		float[][] positions = new float[3][4];
-		float[][] normals = new float[3][3];
-		float[][] texCoords = new float[3][2];
-
 		// Construct full transformation matrix
+		Matrix4f modelview = new Matrix4f(sceneManager.getCamera().getCameraMatrix());
+		modelview.mul(renderItem.getT());
 		Matrix4f t = new Matrix4f(viewportMatrix);
 		t.mul(projectionMatrix);
-		t.mul(sceneManager.getCamera().getCameraMatrix());
-		t.mul(renderItem.getT());
-
-		// Draw geometry
-		int k = 0; // index of triangle vertex
-		for (int j = 0; j < indices.length; j++) {
-			int i = indices[j];
-
-			// Iterate over vertex elements, i.e., position, color, normal, texture, etc.
-			ListIterator<VertexData.VertexElement> itr = vertexElements.listIterator(0);
-			while (itr.hasNext()) {
-				VertexData.VertexElement e = itr.next();
-				if (e.getSemantic() == VertexData.Semantic.POSITION) {
-					Vector4f p = new Vector4f(e.getData()[i * 3], e.getData()[i * 3 + 1], e.getData()[i * 3 + 2], 1);
-					t.transform(p);
-					positions[k][0] = p.x;
-					positions[k][1] = p.y;
-					positions[k][2] = p.z;
-					positions[k][3] = p.w;
-
-					// Assign the other "state variables" to the current vertex
-					colors[k][0] = vertexColor[0];
-					colors[k][1] = vertexColor[1];
-					colors[k][2] = vertexColor[2];
-
-					normals[k][0] = vertexNormal[0];
-					normals[k][1] = vertexNormal[1];
-					normals[k][2] = vertexNormal[2];
-
-					texCoords[k][0] = vertexTexCoords[0];
-					texCoords[k][1] = vertexTexCoords[1];
-
-					k++;
-				}
-				// Read the "state variables" for color, normals, textures, if they are
-				// available
-				if (e.getSemantic() == VertexData.Semantic.COLOR) {
-					vertexColor[0] = e.getData()[i * 3];
-					vertexColor[1] = e.getData()[i * 3 + 1];
-					vertexColor[2] = e.getData()[i * 3 + 2];
-				}
-				if (e.getSemantic() == VertexData.Semantic.NORMAL) {
-					vertexNormal[0] = e.getData()[i * 3];
-					vertexNormal[1] = e.getData()[i * 3 + 1];
-					vertexNormal[2] = e.getData()[i * 3 + 2];
-				}
-				if (e.getSemantic() == VertexData.Semantic.TEXCOORD) {
-					vertexTexCoords[0] = e.getData()[i * 2];
-					vertexTexCoords[1] = e.getData()[i * 2 + 1];
+		t.mul(modelview);
+
+		if (!transformVertices(vertexData, t, modelview))
+			return;
+
+		// Assemble triangles
+		Material mat = renderItem.getShape().getMaterial();
+		cullMode = getCullMode(mat);
+		shader = normalOffset >= 0 ? getShader(mat) : null;
+		materialId = deferred && shader != null ? getMaterialId(shader) : 0;
+		for (int j = 0; j + 2 < indices.length; j += 3) {
+			clipTriangle(indices[j], indices[j + 1], indices[j + 2], mat);
+		}
+	}
+
+	/**
+	 * The vertex stage. Transforms all vertex positions with the given matrix
+	 * and gathers all other vertex elements into one flat array of attribute
+	 * channels, interleaved per vertex. Each element contributes as many
+	 * channels as it has components, in the order of the elements in the vertex
+	 * data, so shapes may carry attributes with any semantic. Normals are
+	 * transformed to camera space with the modelview matrix, as in the GLSL
+	 * shaders.
+	 * 
+	 * @return false if the vertex data has no positions
+	 */
+	private boolean transformVertices(VertexData vertexData, Matrix4f t, Matrix4f modelview) {
+		float[] position = null;
+		int numChannels = 0;
+		colorOffset = -1;
+		normalOffset = -1;
+		texCoordOffset = -1;
+		ListIterator<VertexData.VertexElement> itr = vertexData.getElements().listIterator(0);
+		while (itr.hasNext()) {
+			VertexData.VertexElement e = itr.next();
+			switch (e.getSemantic()) {
+			case POSITION:
+				position = e.getData();
+				continue;
+			case COLOR:
+				if (colorOffset < 0)
+					colorOffset = numChannels;
+				break;
+			case NORMAL:
+				if (normalOffset < 0 && e.getNumberOfComponents() >= 3)
+					normalOffset = numChannels;
+				break;
+			case TEXCOORD:
+				if (texCoordOffset < 0)
+					texCoordOffset = numChannels;
+				break;
+			}
+			numChannels += e.getNumberOfComponents();
+		}
+		if (position == null)
+			return false;
+
+		int n = position.length / 3;
+		this.numChannels = numChannels;
+		if (vertexOutcodes == null || vertexOutcodes.length < n) {
+			vertexPositions = new float[n * 4];
+			vertexOutcodes = new int[n];
+		}
+		if (vertexAttributes == null || vertexAttributes.length < n * numChannels) {
+			vertexAttributes = new float[n * numChannels];
+		}
+		if (triangleVertices[0].length < 4 + numChannels) {
+			triangleVertices = new float[3][4 + numChannels];
+			clipVertices = new float[3][4 + numChannels];
+		}
+		clipper.setStride(4 + numChannels);
+
+		float m00 = t.getElement(0, 0), m01 = t.getElement(0, 1), m02 = t.getElement(0, 2), m03 = t.getElement(0, 3);
+		float m10 = t.getElement(1, 0), m11 = t.getElement(1, 1), m12 = t.getElement(1, 2), m13 = t.getElement(1, 3);
+		float m20 = t.getElement(2, 0), m21 = t.getElement(2, 1), m22 = t.getElement(2, 2), m23 = t.getElement(2, 3);
+		float m30 = t.getElement(3, 0), m31 = t.getElement(3, 1), m32 = t.getElement(3, 2), m33 = t.getElement(3, 3);
+		for (int i = 0; i < n; i++) {
+			float x = position[i * 3], y = position[i * 3 + 1], z = position[i * 3 + 2];
+			float px = m00 * x + m01 * y + m02 * z + m03;
+			float py = m10 * x + m11 * y + m12 * z + m13;
+			float pz = m20 * x + m21 * y + m22 * z + m23;
+			float pw = m30 * x + m31 * y + m32 * z + m33;
+			vertexPositions[i * 4] = px;
+			vertexPositions[i * 4 + 1] = py;
+			vertexPositions[i * 4 + 2] = pz;
+			vertexPositions[i * 4 + 3] = pw;
+			vertexOutcodes[i] = clipper.outcode(px, py, pz, pw);
+		}
+
+		// Interleave the attribute channels
+		int offset = 0;
+		itr = vertexData.getElements().listIterator(0);
+		while (itr.hasNext()) {
+			VertexData.VertexElement e = itr.next();
+			if (e.getSemantic() == VertexData.Semantic.POSITION)
+				continue;
+			float[] data = e.getData();
+			int dim = e.getNumberOfComponents();
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(data, i * dim, vertexAttributes, i * numChannels + offset, dim);
+			}
+			offset += dim;
+		}
+
+		if (normalOffset >= 0) {
+			float n00 = modelview.getElement(0, 0), n01 = modelview.getElement(0, 1), n02 = modelview.getElement(0, 2);
+			float n10 = modelview.getElement(1, 0), n11 = modelview.getElement(1, 1), n12 = modelview.getElement(1, 2);
+			float n20 = modelview.getElement(2, 0), n21 = modelview.getElement(2, 1), n22 = modelview.getElement(2, 2);
+			for (int i = 0, k = normalOffset; i < n; i++, k += numChannels) {
+				float x = vertexAttributes[k], y = vertexAttributes[k + 1], z = vertexAttributes[k + 2];
+				vertexAttributes[k] = n00 * x + n01 * y + n02 * z;
+				vertexAttributes[k + 1] = n10 * x + n11 * y + n12 * z;
+				vertexAttributes[k + 2] = n20 * x + n21 * y + n22 * z;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the shader kernel for shapes with the given material, specialized
+	 * for the lights of the current frame, or null if they are unlit.
+	 */
+	private SWShaderKernel getShader(Material mat) {
+		SWShaderKernel kernel = activeShader;
+		if (mat != null && mat.shader instanceof SWShader) {
+			kernel = ((SWShader) mat.shader).getKernel();
+		}
+		if (kernel == null)
+			return null;
+
+		SWShaderKernel specialized = specializedShaders.get(kernel);
+		if (specialized == null) {
+			specialized = kernel.specialize(lights.count, lights.position, lights.color);
+			specializedShaders.put(kernel, specialized);
+		}
+		return specialized;
+	}
+
+	/**
+	 * Return the G-buffer material id of a specialized shader kernel in the
+	 * current frame. Ids are handed out in order of first use. If a frame uses
+	 * more kernels than there are ids, the remaining shapes are drawn unlit.
+	 */
+	private byte getMaterialId(SWShaderKernel kernel) {
+		Integer id = materialIds.get(kernel);
+		if (id == null) {
+			if (materialIds.size() == materialShaders.length - 1)
+				return 0;
+			id = materialIds.size() + 1;
+			materialIds.put(kernel, id);
+			materialShaders[id] = kernel;
+		}
+		return (byte) (int) id;
+	}
+
+	/**
+	 * The clip stage between vertex transformation and rasterization. Rejects
+	 * triangles outside the viewport and clips triangles that cross the near or
+	 * far plane or the guard band. The resulting triangles all have positive w
+	 * and a bounded screen space extent.
+	 */
+	private void clipTriangle(int i0, int i1, int i2, Material mat) {
+		int c0 = vertexOutcodes[i0];
+		int c1 = vertexOutcodes[i1];
+		int c2 = vertexOutcodes[i2];
+		if (SWClipper.isOutside(c0, c1, c2))
+			return;
+
+		if (SWClipper.isInside(c0, c1, c2)) {
+			loadVertex(i0, triangleVertices[0]);
+			loadVertex(i1, triangleVertices[1]);
+			loadVertex(i2, triangleVertices[2]);
+			drawTriangle(triangleVertices, mat);
+			return;
+		}
+
+		loadVertex(i0, clipVertices[0]);
+		loadVertex(i1, clipVertices[1]);
+		loadVertex(i2, clipVertices[2]);
+		int n = clipper.clip(clipVertices[0], clipVertices[1], clipVertices[2], c0 | c1 | c2);
+		for (int i = 1; i < n - 1; i++) {
+			System.arraycopy(clipper.getVertex(0), 0, triangleVertices[0], 0, 4 + numChannels);
+			System.arraycopy(clipper.getVertex(i), 0, triangleVertices[1], 0, 4 + numChannels);
+			System.arraycopy(clipper.getVertex(i + 1), 0, triangleVertices[2], 0, 4 + numChannels);
+			drawTriangle(triangleVertices, mat);
+		}
+	}
+
+	/**
+	 * Copy transformed vertex i into v, the position followed by the attribute
+	 * channels.
+	 */
+	private void loadVertex(int i, float v[]) {
+		System.arraycopy(vertexPositions, i * 4, v, 0, 4);
+		System.arraycopy(vertexAttributes, i * numChannels, v, 4, numChannels);
+	}
+
+	/**
+	 * Draw a triangle. This sets up the edge functions, the 1/w plane and the
+	 * attribute planes of the triangle. In serial mode the triangle is
+	 * rasterized immediately, in tiled mode it is binned and rasterized in
+	 * {@link #endFrame()}.
+	 * 
+	 * @param vertices
+	 *            the three vertices, each (x, y, z, w) after the viewport
+	 *            transformation followed by the attribute channels
+	 */
+	void drawTriangle(float vertices[][], Material mat) {
+		SWTriangle t = tiled ? nextTriangle() : serialTriangle;
+		if (!t.setup(vertices, numChannels, width, height, cullMode, subSampleX, subSampleY))
+			return;
+		t.colorOffset = colorOffset;
+		t.normalOffset = normalOffset;
+		t.texCoordOffset = texCoordOffset;
+		t.shader = shader;
+		t.materialId = materialId;
+		t.texture = null;
+		if (mat != null && mat.diffuseMap instanceof SWTexture && ((SWTexture) mat.diffuseMap).isLoaded()) {
+			t.texture = (SWTexture) mat.diffuseMap;
+		}
+
+		if (tiled) {
+			binTriangle(t);
+		} else {
+			rasterize(t, 0, 0, width, height, kernels[0]);
+		}
+	}
+
+	/**
+	 * Return the next unused triangle of the pool, growing the pool if needed.
+	 * The triangle is only taken from the pool once it is binned.
+	 */
+	private SWTriangle nextTriangle() {
+		if (numTriangles == triangles.size()) {
+			triangles.add(new SWTriangle());
+		}
+		return triangles.get(numTriangles);
+	}
+
+	/**
+	 * Append a triangle to the bins of all tiles its bounding box overlaps. The
+	 * bins keep submission order, so each tile sees its triangles in the same
+	 * order as the serial path.
+	 */
+	private void binTriangle(SWTriangle t) {
+		int index = numTriangles++;
+
+		int tx1 = (t.iE - 1) / TILE_SIZE;
+		int ty1 = (t.jE - 1) / TILE_SIZE;
+		for (int ty = t.jS / TILE_SIZE; ty <= ty1; ty++) {
+			for (int tx = t.iS / TILE_SIZE; tx <= tx1; tx++) {
+				int tile = tx + ty * tilesX;
+				int n = binSizes[tile];
+				if (n == bins[tile].length) {
+					bins[tile] = Arrays.copyOf(bins[tile], n * 2);
 				}
+				bins[tile][n] = index;
+				binSizes[tile] = n + 1;
 			}
+		}
+	}
 
-			if (k == 3) {
-				drawTriangle(positions, colors, normals, texCoords, renderItem.getShape().getMaterial());
-				k = 0;
+	/**
+	 * Rasterize all binned triangles. Tiles are handed out to the worker threads
+	 * one at a time; each tile is owned by exactly one worker, so the workers
+	 * never touch the same pixels of the color buffer or the z-buffer.
+	 */
+	private void rasterizeTiles() {
+		if (numTriangles == 0)
+			return;
+
+		nextTile.set(0);
+		if (numThreads == 1) {
+			new TileWorker(kernels[0]).call();
+			return;
+		}
+		LinkedList<Callable<Void>> workers = new LinkedList<Callable<Void>>();
+		for (int i = 0; i < numThreads; i++) {
+			workers.add(new TileWorker(kernels[i]));
+		}
+		try {
+			for (Future<Void> f : tilePool.invokeAll(workers)) {
+				f.get();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
 		}
 	}
 
 	/**
-	 * Draw a triangle. Implement triangle rasterization here. You will need to
-	 * include a z-buffer to resolve visibility.
+	 * Pulls tiles from the shared tile counter until all tiles are done.
 	 */
-	void drawTriangle(float positions[][], float colors[][], float normals[][], float texCoords[][], Material mat) {
-		int iS = 0;
-		int iE = width;
-		int jS = 0;
-		int jE = height;
-		Matrix3f pMat = new Matrix3f();
-		Matrix3f cMat = new Matrix3f();
-		Matrix3f pCoeff = new Matrix3f();
-		for (int i = 0; i < 3; i++) {
-			pMat.setRow(i, positions[i][0], positions[i][1], positions[i][3]);
-			cMat.setRow(i, colors[i][0], colors[i][1], colors[i][2]);
+	private class TileWorker implements Callable<Void> {
+		private SWRasterKernel kernel;
+
+		public TileWorker(SWRasterKernel kernel) {
+			this.kernel = kernel;
 		}
 
-		float[] w = new float[3];
-		pMat.getColumn(2, w);
-		if (w[0] < 0 && w[1] < 0 && w[2] < 0) {
+		public Void call() {
+			int numTiles = tilesX * tilesY;
+			int tile;
+			while ((tile = nextTile.getAndIncrement()) < numTiles) {
+				int x0 = (tile % tilesX) * TILE_SIZE;
+				int y0 = (tile / tilesX) * TILE_SIZE;
+				int x1 = Math.min(x0 + TILE_SIZE, width);
+				int y1 = Math.min(y0 + TILE_SIZE, height);
+				int[] bin = bins[tile];
+				for (int k = 0; k < binSizes[tile]; k++) {
+					rasterize(triangles.get(bin[k]), x0, y0, x1, y1, kernel);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Rasterize the part of a set-up triangle that lies inside the rectangle
+	 * [x0, x1) x [y0, y1). The serial path passes the whole viewport.
+	 * <p>
+	 * The triangle is walked in blocks of the hierarchical z-buffer. Blocks
+	 * whose farthest stored depth is closer than the closest point of the
+	 * triangle are skipped, the others are handed to the raster kernel. Since
+	 * blocks never straddle tiles, the tiled and the serial path produce the
+	 * same image.
+	 */
+	private void rasterize(SWTriangle t, int x0, int y0, int x1, int y1, SWRasterKernel kernel) {
+		int iS = Math.max(t.iS, x0);
+		int iE = Math.min(t.iE, x1);
+		int jS = Math.max(t.jS, y0);
+		int jE = Math.min(t.jE, y1);
+		if (iS >= iE || jS >= jE)
 			return;
-		} else if (w[0] > 0 && w[1] > 0 && w[2] > 0) {
-			float[] x = new float[3];
-			float[] y = new float[3];
-			pMat.getColumn(0, x);
-			pMat.getColumn(1, y);
-			iS = Math.round(Math.max(Math.min(x[0] / w[0], Math.min(x[1] / w[1], x[2] / w[2])), 0));
-			iE = Math.round(Math.min(Math.max(x[0] / w[0], Math.max(x[1] / w[1], x[2] / w[2])), width));
-			jS = Math.round(Math.max(Math.min(y[0] / w[0], Math.min(y[1] / w[1], y[2] / w[2])), 0));
-			jE = Math.round(Math.min(Math.max(y[0] / w[0], Math.max(y[1] / w[1], y[2] / w[2])), height));
-		}
-
-		pCoeff.invert(pMat);
-		Matrix3f cCoeff = new Matrix3f(pCoeff);
-		cCoeff.mul(cMat);
-
-		Vector3f v = new Vector3f();
-		Vector3f wInv = new Vector3f();
-		pCoeff.getRow(0, v);
-		wInv.setX(v.dot(new Vector3f(1, 1, 1)));
-		pCoeff.getRow(1, v);
-		wInv.setY(v.dot(new Vector3f(1, 1, 1)));
-		pCoeff.getRow(2, v);
-		wInv.setZ(v.dot(new Vector3f(1, 1, 1)));
-
-		for (int i = iS; i < iE; i++) {
-			for (int j = jS; j < jE; j++) {
-				float x = i + 0.5f;
-				float y = j + 0.5f;
-
-				float[] alpha = new float[3];
-				pCoeff.getColumn(0, alpha);
-				float[] beta = new float[3];
-				pCoeff.getColumn(1, beta);
-				float[] gamma = new float[3];
-				pCoeff.getColumn(2, gamma);
-				if (alpha[0] * x + alpha[1] * y + alpha[2] > 0) {
-					if (beta[0] * x + beta[1] * y + beta[2] > 0) {
-						if (gamma[0] * x + gamma[1] * y + gamma[2] > 0) {
-							float wInvVal = wInv.getX() * x + wInv.getY() * y + wInv.getZ();
-							if (wInvVal > zBuffer[i + j * width]) {
-								wInv.setZ(v.dot(new Vector3f(1, 1, 1)));
-								// colorBuffer.setRGB(i, j, ((int) colors[0][0] * 255 << 16)
-								// | ((int) colors[0][1] * 255 << 8) | ((int) colors[0][2] * 255));
-
-								Vector3f col = new Vector3f();
-								cCoeff.getColumn(0, col);
-								float red = (col.getX() * x + col.getY() * y + col.getZ()) / wInvVal;
-								cCoeff.getColumn(1, col);
-								float green = (col.getX() * x + col.getY() * y + col.getZ()) / wInvVal;
-								cCoeff.getColumn(2, col);
-								float blue = (col.getX() * x + col.getY() * y + col.getZ()) / wInvVal;
-
-								colorBuffer.setRGB(i, j,
-										((int) (red * 255) << 16) | ((int) (green * 255) << 8) | ((int) (blue * 255)));
-
-								zBuffer[i + j * width] = wInvVal;
-							}
-						}
-					}
+
+		int shift = SWDepthBuffer.BLOCK_SHIFT;
+		int blocksX = zBuffer.getBlocksX();
+		for (int by = jS >> shift; by <= (jE - 1) >> shift; by++) {
+			int rowStart = Math.max(jS, by << shift);
+			int rowEnd = Math.min(jE, (by + 1) << shift);
+			for (int bx = iS >> shift; bx <= (iE - 1) >> shift; bx++) {
+				int block = bx + by * blocksX;
+				if (t.maxWInv < zBuffer.farthest(block))
+					continue;
+
+				int colStart = Math.max(iS, bx << shift);
+				int colEnd = Math.min(iE, (bx + 1) << shift);
+				if (zBuffer.getSamples() > 1) {
+					kernel.rasterizeBlockMultisample(t, colStart, colEnd, rowStart, rowEnd, block);
+				} else {
+					kernel.rasterizeBlock(t, colStart, colEnd, rowStart, rowEnd, block);
 				}
 			}
 		}
 	}
 
 	/**
-	 * Does nothing. We will not implement shaders for the software renderer.
+	 * Switch between the tiled, multithreaded rasterizer and the serial one.
+	 * Both produce the same image; the serial path is kept for comparison and
+	 * debugging.
+	 */
+	public void setTiledRendering(boolean tiled) {
+		finishFrames();
+		this.tiled = tiled;
+	}
+
+	public boolean isTiledRendering() {
+		return tiled;
+	}
+
+	/**
+	 * Switch the vectorized raster kernel on (the default) or off. The vector
+	 * kernel is only used if it is available, see
+	 * {@link #isVectorRasterizationAvailable()}. Both kernels produce the same
+	 * image.
+	 */
+	public void setVectorRasterization(boolean vector) {
+		finishFrames();
+		vectorRasterization = vector;
+		makeKernels();
+	}
+
+	/**
+	 * Return true if frames are rasterized with the vector kernel.
+	 */
+	public boolean isVectorRasterization() {
+		return vectorRasterization && isVectorRasterizationAvailable();
+	}
+
+	/**
+	 * Return true if the vector raster kernel can be used. This requires
+	 * running with --add-modules jdk.incubator.vector and the classes of the
+	 * vector source set on the class path.
+	 */
+	public static boolean isVectorRasterizationAvailable() {
+		return SWRasterKernel.isVectorAvailable();
+	}
+
+	/**
+	 * Switch deferred shading on or off. In deferred mode the rasterizer only
+	 * fills a G-buffer, and each visible pixel is shaded once at the end of
+	 * the frame by the shader kernel of its shape. This saves shading work
+	 * where shapes overlap.
+	 */
+	public void setDeferredShading(boolean deferred) {
+		finishFrames();
+		this.deferred = deferred;
+	}
+
+	public boolean isDeferredShading() {
+		return deferred;
+	}
+
+	/**
+	 * Set the number of samples per pixel for multisample anti-aliasing: 1
+	 * (off, the default), 2, 4 or 8. Coverage and depth are tested per
+	 * sample, but each pixel is still shaded only once per triangle. The
+	 * samples are averaged at the end of the frame. Deferred shading always
+	 * renders with one sample per pixel.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             for other sample counts
+	 */
+	public void setMultisampling(int samples) {
+		float[][] pattern;
+		switch (samples) {
+		case 1:
+			pattern = null;
+			break;
+		case 2:
+			pattern = SAMPLES_2;
+			break;
+		case 4:
+			pattern = SAMPLES_4;
+			break;
+		case 8:
+			pattern = SAMPLES_8;
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported number of samples: " + samples);
+		}
+		finishFrames();
+		this.samples = samples;
+		sampleX = null;
+		sampleY = null;
+		if (pattern != null) {
+			sampleX = new float[samples];
+			sampleY = new float[samples];
+			for (int i = 0; i < samples; i++) {
+				sampleX[i] = pattern[i][0];
+				sampleY[i] = pattern[i][1];
+			}
+		}
+	}
+
+	public int getMultisampling() {
+		return samples;
+	}
+
+	/**
+	 * Return the number of samples per pixel the next frame renders with.
+	 */
+	private int activeSamples() {
+		return deferred ? 1 : samples;
+	}
+
+	/**
+	 * Set the cull mode for all shapes whose material has no cull mode of its
+	 * own. The default is {@link CullMode#NONE}.
+	 */
+	public void setCullMode(CullMode mode) {
+		finishFrames();
+		defaultCullMode = mode;
+	}
+
+	/**
+	 * Set the cull mode for shapes with the given material. Passing null as
+	 * the mode removes the setting, so the default applies again.
+	 */
+	public void setCullMode(Material mat, CullMode mode) {
+		finishFrames();
+		if (mode == null) {
+			cullModes.remove(mat);
+		} else {
+			cullModes.put(mat, mode);
+		}
+	}
+
+	/**
+	 * Return the cull mode used for shapes with the given material.
+	 */
+	public CullMode getCullMode(Material mat) {
+		CullMode mode = mat != null ? cullModes.get(mat) : null;
+		return mode != null ? mode : defaultCullMode;
+	}
+
+	/**
+	 * Set the storage format of the depth buffer. This reallocates the depth
+	 * buffer if a viewport has already been set.
+	 */
+	public void setDepthFormat(DepthFormat format) {
+		finishFrames();
+		depthFormat = format;
+		if (zBuffer != null && zBuffer.getFormat() != format) {
+			zBuffer = new SWDepthBuffer(width, height, format, zBuffer.getSamples());
+		}
+	}
+
+	public DepthFormat getDepthFormat() {
+		return depthFormat;
+	}
+
+	/**
+	 * Return 1/w at the near plane of a perspective projection matrix, or 1 if
+	 * the matrix is not a standard perspective projection.
+	 */
+	private static float nearPlaneWInv(Matrix4f p) {
+		float m22 = p.getElement(2, 2);
+		float m23 = p.getElement(2, 3);
+		if (m22 == 1 || m23 == 0)
+			return 1.f;
+		float near = m23 / (m22 - 1);
+		return near > 0 ? 1 / near : 1.f;
+	}
+
+	/**
+	 * Make a shader for the software renderer. Its {@link SWShader#load}
+	 * picks a built-in {@link SWShaderKernel} matching the GLSL shader, or a
+	 * kernel can be set directly.
 	 */
 	public Shader makeShader() {
 		return new SWShader();
 	}
 
 	/**
-	 * Does nothing. We will not implement shaders for the software renderer.
+	 * Use the given shader for all shapes whose material has no shader of its
+	 * own. Shapes are only lit if they have normals.
 	 */
 	public void useShader(Shader s) {
+		finishFrames();
+		if (s instanceof SWShader) {
+			activeShader = ((SWShader) s).getKernel();
+		}
 	}
 
 	/**
-	 * Does nothing. We will not implement shaders for the software renderer.
+	 * The default shader draws shapes unlit, with their vertex colors and
+	 * diffuse texture.
 	 */
 	public void useDefaultShader() {
+		finishFrames();
+		activeShader = null;
 	}
 
 	/**
-	 * Does nothing. We will not implement textures for the software renderer.
+	 * Make a texture for the software renderer. Materials whose diffuse map is
+	 * such a texture are drawn textured, modulated with the vertex colors.
 	 */
 	public Texture makeTexture() {
 		return new SWTexture();
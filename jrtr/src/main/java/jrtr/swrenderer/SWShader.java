@@ -0,0 +1,50 @@
+package jrtr.swrenderer;
+
+import jrtr.Shader;
+
+import java.io.IOException;
+
+/**
+ * A shader of the software renderer. Since the software renderer cannot run
+ * GLSL, a shader wraps a {@link SWShaderKernel} written in Java. Loading a
+ * pair of GLSL files picks the built-in kernel that matches the fragment
+ * shader, so applications can use the same code for both renderers.
+ */
+public class SWShader implements Shader {
+
+	private SWShaderKernel kernel;
+
+	public SWShader() {
+	}
+
+	public SWShader(SWShaderKernel kernel) {
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Choose the built-in kernel for a GLSL shader, based on the name of the
+	 * fragment shader file: blinn, diffuse3, and the diffuse shaders without
+	 * an ambient term are supported. Any other shader gets no kernel, so
+	 * shapes using it are drawn unlit, like with the default shader.
+	 */
+	public void load(String vertexFileName, String fragmentFileName) throws IOException {
+		String name = fragmentFileName.substring(fragmentFileName.lastIndexOf('/') + 1);
+		if (name.startsWith("blinn")) {
+			kernel = new SWBlinnKernel();
+		} else if (name.startsWith("diffuse3")) {
+			kernel = new SWDiffuseKernel();
+		} else if (name.startsWith("diffuse")) {
+			kernel = new SWDiffuseKernel(0);
+		} else {
+			kernel = null;
+		}
+	}
+
+	public SWShaderKernel getKernel() {
+		return kernel;
+	}
+
+	public void setKernel(SWShaderKernel kernel) {
+		this.kernel = kernel;
+	}
+}
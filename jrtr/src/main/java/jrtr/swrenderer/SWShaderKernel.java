@@ -0,0 +1,31 @@
+package jrtr.swrenderer;
+
+/**
+ * A shader for the software renderer, written in Java. It plays the role of
+ * a pair of GLSL shaders: it computes the color of a fragment from its
+ * position, normal and albedo and the light sources of the scene.
+ * <p>
+ * At the start of every frame the renderer calls
+ * {@link #specialize(int, float[], float[])} once per kernel in use, and then
+ * shades all fragments of the frame with the returned kernel. This lets a
+ * kernel copy the lights into fields and pick an implementation for the
+ * exact number of lights, so its inner loop needs no per-light branching.
+ * Fragments are shaded from several threads at once, so {@link #shade}
+ * must not modify the kernel.
+ */
+public interface SWShaderKernel {
+
+	/**
+	 * Return a kernel for the given lights. Positions are in camera
+	 * coordinates, and both arrays hold three values per light. The arrays are
+	 * reused by the renderer and must be copied.
+	 */
+	SWShaderKernel specialize(int numLights, float[] lightPositions, float[] lightColors);
+
+	/**
+	 * Shade a fragment.
+	 * 
+	 * @return the color as a packed RGB int, see {@link SWFragment#pack}
+	 */
+	int shade(SWFragment f);
+}
@@ -0,0 +1,224 @@
+package jrtr.swrenderer;
+
+import jrtr.Texture;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * A texture for the software renderer. The texels of all mip levels are
+ * stored as packed RGB values in one int array. Within a level, texels are
+ * grouped into TILE x TILE tiles that are stored one after the other, so that
+ * the texels around a sample position share a few cache lines no matter in
+ * which direction the surface is rotated on screen.
+ * <p>
+ * Texture coordinates wrap around (repeat), and v = 0 is the bottom row of
+ * the image, as in OpenGL. The filter modes correspond to GL_NEAREST,
+ * GL_LINEAR and GL_LINEAR_MIPMAP_LINEAR.
+ */
+public class SWTexture implements Texture {
+
+	public enum Filter {
+		NEAREST, BILINEAR, TRILINEAR
+	}
+
+	private static final int TILE_SHIFT = 3;
+	private static final int TILE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE - 1;
+
+	private Filter filter = Filter.BILINEAR;
+	private int[] texels;
+	private int[] levelOffset;
+	private int[] levelWidth;
+	private int[] levelHeight;
+	private int[] levelTilesX;
+	private int numLevels;
+
+	public void load(String fileName) throws IOException {
+		BufferedImage image = ImageIO.read(new File(fileName));
+		if (image == null)
+			throw new IOException("Could not read image " + fileName);
+		load(image);
+	}
+
+	/**
+	 * Load the texture from an image. This builds the complete mip chain by
+	 * averaging 2x2 texels of each level.
+	 */
+	public void load(BufferedImage image) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] level = image.getRGB(0, 0, w, h, null, 0, w);
+
+		numLevels = 1;
+		while ((w >> (numLevels - 1)) > 1 || (h >> (numLevels - 1)) > 1) {
+			numLevels++;
+		}
+		levelOffset = new int[numLevels];
+		levelWidth = new int[numLevels];
+		levelHeight = new int[numLevels];
+		levelTilesX = new int[numLevels];
+
+		int size = 0;
+		for (int l = 0; l < numLevels; l++) {
+			levelWidth[l] = Math.max(w >> l, 1);
+			levelHeight[l] = Math.max(h >> l, 1);
+			levelTilesX[l] = (levelWidth[l] + TILE_MASK) >> TILE_SHIFT;
+			int tilesY = (levelHeight[l] + TILE_MASK) >> TILE_SHIFT;
+			levelOffset[l] = size;
+			size += levelTilesX[l] * tilesY * TILE * TILE;
+		}
+		texels = new int[size];
+
+		for (int l = 0; l < numLevels; l++) {
+			if (l > 0) {
+				level = downsample(level, levelWidth[l - 1], levelHeight[l - 1], levelWidth[l], levelHeight[l]);
+			}
+			for (int y = 0; y < levelHeight[l]; y++) {
+				for (int x = 0; x < levelWidth[l]; x++) {
+					texels[index(l, x, y)] = level[x + y * levelWidth[l]] & 0xffffff;
+				}
+			}
+		}
+	}
+
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Return true if the texture has been loaded.
+	 */
+	public boolean isLoaded() {
+		return texels != null;
+	}
+
+	/**
+	 * Return true if sampling needs a level of detail, i.e., if the filter
+	 * uses the mip chain.
+	 */
+	boolean usesMipmaps() {
+		return filter == Filter.TRILINEAR;
+	}
+
+	/**
+	 * Compute the level of detail from the screen space derivatives of the
+	 * texture coordinates.
+	 */
+	float lod(float dudx, float dvdx, float dudy, float dvdy) {
+		float w = levelWidth[0];
+		float h = levelHeight[0];
+		float dx = (dudx * w) * (dudx * w) + (dvdx * h) * (dvdx * h);
+		float dy = (dudy * w) * (dudy * w) + (dvdy * h) * (dvdy * h);
+		return (float) (0.5 * Math.log(Math.max(dx, dy)) / Math.log(2));
+	}
+
+	/**
+	 * Sample the texture at (u, v) with the current filter.
+	 * 
+	 * @param lod
+	 *            the level of detail, only used by the trilinear filter
+	 * @return the filtered color as packed RGB
+	 */
+	int sample(float u, float v, float lod) {
+		switch (filter) {
+		case NEAREST:
+			return nearest(0, u, v);
+		case BILINEAR:
+			return bilinear(0, u, v);
+		default:
+			return trilinear(u, v, lod);
+		}
+	}
+
+	private int nearest(int l, float u, float v) {
+		int x = (int) Math.floor(u * levelWidth[l]);
+		int y = (int) Math.floor((1 - v) * levelHeight[l]);
+		return texels[index(l, wrap(x, levelWidth[l]), wrap(y, levelHeight[l]))];
+	}
+
+	private int bilinear(int l, float u, float v) {
+		float fx = u * levelWidth[l] - 0.5f;
+		float fy = (1 - v) * levelHeight[l] - 0.5f;
+		int x0 = (int) Math.floor(fx);
+		int y0 = (int) Math.floor(fy);
+		float ax = fx - x0;
+		float ay = fy - y0;
+		int x1 = wrap(x0 + 1, levelWidth[l]);
+		int y1 = wrap(y0 + 1, levelHeight[l]);
+		x0 = wrap(x0, levelWidth[l]);
+		y0 = wrap(y0, levelHeight[l]);
+
+		int t00 = texels[index(l, x0, y0)];
+		int t10 = texels[index(l, x1, y0)];
+		int t01 = texels[index(l, x0, y1)];
+		int t11 = texels[index(l, x1, y1)];
+		float w00 = (1 - ax) * (1 - ay), w10 = ax * (1 - ay), w01 = (1 - ax) * ay, w11 = ax * ay;
+
+		int rgb = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			float c = ((t00 >> shift) & 255) * w00 + ((t10 >> shift) & 255) * w10 + ((t01 >> shift) & 255) * w01
+					+ ((t11 >> shift) & 255) * w11;
+			rgb |= Math.min((int) (c + 0.5f), 255) << shift;
+		}
+		return rgb;
+	}
+
+	private int trilinear(float u, float v, float lod) {
+		if (!(lod > 0))
+			return bilinear(0, u, v);
+		if (lod >= numLevels - 1)
+			return bilinear(numLevels - 1, u, v);
+
+		int l = (int) lod;
+		float a = lod - l;
+		int c0 = bilinear(l, u, v);
+		int c1 = bilinear(l + 1, u, v);
+		int rgb = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			float c = ((c0 >> shift) & 255) * (1 - a) + ((c1 >> shift) & 255) * a;
+			rgb |= Math.min((int) (c + 0.5f), 255) << shift;
+		}
+		return rgb;
+	}
+
+	/**
+	 * Index of texel (x, y) of level l in the tiled layout.
+	 */
+	private int index(int l, int x, int y) {
+		int tile = (y >> TILE_SHIFT) * levelTilesX[l] + (x >> TILE_SHIFT);
+		return levelOffset[l] + (tile << (2 * TILE_SHIFT)) + ((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK);
+	}
+
+	private static int wrap(int x, int size) {
+		x %= size;
+		return x < 0 ? x + size : x;
+	}
+
+	/**
+	 * Halve a level by averaging (up to) 2x2 texels per output texel.
+	 */
+	private static int[] downsample(int[] src, int sw, int sh, int dw, int dh) {
+		int[] dst = new int[dw * dh];
+		for (int y = 0; y < dh; y++) {
+			for (int x = 0; x < dw; x++) {
+				int sx0 = Math.min(2 * x, sw - 1), sx1 = Math.min(2 * x + 1, sw - 1);
+				int sy0 = Math.min(2 * y, sh - 1), sy1 = Math.min(2 * y + 1, sh - 1);
+				int a = src[sx0 + sy0 * sw], b = src[sx1 + sy0 * sw], c = src[sx0 + sy1 * sw], d = src[sx1 + sy1 * sw];
+				int rgb = 0;
+				for (int shift = 16; shift >= 0; shift -= 8) {
+					int sum = ((a >> shift) & 255) + ((b >> shift) & 255) + ((c >> shift) & 255) + ((d >> shift) & 255);
+					rgb |= ((sum + 2) >> 2) << shift;
+				}
+				dst[x + y * dw] = rgb;
+			}
+		}
+		return dst;
+	}
+}
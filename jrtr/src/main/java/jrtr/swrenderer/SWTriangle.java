@@ -0,0 +1,234 @@
+package jrtr.swrenderer;
+
+/**
+ * A triangle after setup, ready for rasterization. Stores the screen space
+ * bounding box and the coefficients of the linear functions f(x, y) = f0 * x +
+ * f1 * y + f2 that the rasterizer evaluates per pixel: the three edge
+ * functions, the 1/w plane and one plane per attribute channel. Attribute
+ * planes interpolate the attribute divided by w, so dividing by the
+ * interpolated 1/w gives the perspective correct value.
+ * <p>
+ * The edge functions are exact. The vertices are snapped to 28.4 fixed point
+ * screen coordinates, and the edge functions are evaluated in integer
+ * arithmetic at pixel (x, y), i.e., at the pixel center (x + 0.5, y + 0.5). A
+ * pixel is covered if all three are positive. Pixels exactly on an edge
+ * belong to the triangle only if the edge is a top or a left edge, so pixels
+ * on an edge shared by two triangles are drawn exactly once.
+ * <p>
+ * Instances are pooled by {@link SWRenderContext} and reused across frames.
+ * The attribute plane arrays only grow, so setup does not allocate once the
+ * pool has warmed up.
+ */
+class SWTriangle {
+
+	// Bounding box in pixels, [iS, iE) x [jS, jE)
+	int iS, iE, jS, jE;
+
+	// Edge functions alpha, beta, gamma, in 28.4 fixed point units squared;
+	// the fill rule is folded into f2
+	long a0, a1, a2;
+	long b0, b1, b2;
+	long g0, g1, g2;
+
+	// 1/w plane, and its largest value on the triangle
+	float w0, w1, w2;
+	float maxWInv;
+
+	// Attribute planes, numChannels entries each
+	int numChannels;
+	float[] c0 = new float[0], c1 = new float[0], c2 = new float[0];
+
+	// Offsets of the known attributes among the channels, -1 if absent
+	int colorOffset, normalOffset, texCoordOffset;
+
+	// Diffuse texture of the material, or null
+	SWTexture texture;
+
+	// Shader kernel of the triangle, null if unlit. In deferred mode the
+	// kernel is referred to by the material id in the G-buffer, 0 if unlit.
+	SWShaderKernel shader;
+	byte materialId;
+
+	// Triangles with a smaller screen space area, in pixels, are treated as
+	// degenerate. This only guards the inverse against triangles whose
+	// snapped area is not zero but whose exact area is.
+	private static final double MIN_AREA = 1e-4;
+
+	// Triangles whose bounding box has at most this many pixels are tested
+	// for covered samples before the inverse is computed
+	private static final int SMALL_PIXELS = 4;
+
+	// Relative rounding error of the 1/w plane, a generous multiple of the
+	// float precision
+	private static final float WINV_EPSILON = 1e-5f;
+
+	// Sub-pixel precision of the fixed point vertex coordinates
+	static final int SUBPIXEL_BITS = 4;
+	static final int SUBPIXELS = 1 << SUBPIXEL_BITS;
+
+	/**
+	 * Set up the triangle from its vertices. Each vertex holds its position (x,
+	 * y, z, w after the viewport transformation) followed by numChannels
+	 * attribute values. The 1/w and attribute planes come from the columns of
+	 * the inverse of the matrix with rows (x, y, w) of the vertices, the
+	 * barycentric coordinates in homogeneous screen space.
+	 * <p>
+	 * Culling, zero area and coverage are decided on the snapped fixed point
+	 * vertices, before the inverse is computed. Since the viewport flips y,
+	 * triangles that are counter-clockwise in normalized device coordinates
+	 * (front facing) have a negative snapped area. Triangles with a small
+	 * bounding box are rejected if none of their samples is covered. All w
+	 * must be positive, which the clip stage guarantees.
+	 * 
+	 * @param sampleX
+	 *            x offsets of the samples from the pixel center, in sub-pixel
+	 *            units; {0} without multisampling
+	 * @param sampleY
+	 *            y offsets of the samples
+	 * @return false if the triangle does not cover any pixel of the viewport
+	 */
+	boolean setup(float vertices[][], int numChannels, int width, int height, SWRenderContext.CullMode cull,
+			int[] sampleX, int[] sampleY) {
+		float[] v0 = vertices[0], v1 = vertices[1], v2 = vertices[2];
+		float x0 = v0[0], y0 = v0[1], wv0 = v0[3];
+		float x1 = v1[0], y1 = v1[1], wv1 = v1[3];
+		float x2 = v2[0], y2 = v2[1], wv2 = v2[3];
+
+		if (!(wv0 > 0 && wv1 > 0 && wv2 > 0))
+			return false;
+
+		// Snap to fixed point. The bounding box contains every pixel that
+		// overlaps the triangle, so it also covers all samples of multisampling.
+		long sx0 = Math.round(x0 / wv0 * SUBPIXELS), sy0 = Math.round(y0 / wv0 * SUBPIXELS);
+		long sx1 = Math.round(x1 / wv1 * SUBPIXELS), sy1 = Math.round(y1 / wv1 * SUBPIXELS);
+		long sx2 = Math.round(x2 / wv2 * SUBPIXELS), sy2 = Math.round(y2 / wv2 * SUBPIXELS);
+		iS = (int) Math.max(Math.min(sx0, Math.min(sx1, sx2)) >> SUBPIXEL_BITS, 0);
+		iE = (int) Math.min((Math.max(sx0, Math.max(sx1, sx2)) >> SUBPIXEL_BITS) + 1, width);
+		jS = (int) Math.max(Math.min(sy0, Math.min(sy1, sy2)) >> SUBPIXEL_BITS, 0);
+		jE = (int) Math.min((Math.max(sy0, Math.max(sy1, sy2)) >> SUBPIXEL_BITS) + 1, height);
+		if (iS >= iE || jS >= jE)
+			return false;
+
+		// Fixed point edge functions, oriented to be positive inside
+		long area = (sx1 - sx0) * (sy2 - sy0) - (sx2 - sx0) * (sy1 - sy0);
+		if (area == 0)
+			return false;
+		if (cull == SWRenderContext.CullMode.BACK && area > 0)
+			return false;
+		if (cull == SWRenderContext.CullMode.FRONT && area < 0)
+			return false;
+		long sign = area > 0 ? 1 : -1;
+		setupEdge(sign * (sy1 - sy2), sign * (sx2 - sx1), sign * (sx1 * sy2 - sx2 * sy1), 0);
+		setupEdge(sign * (sy2 - sy0), sign * (sx0 - sx2), sign * (sx2 * sy0 - sx0 * sy2), 1);
+		setupEdge(sign * (sy0 - sy1), sign * (sx1 - sx0), sign * (sx0 * sy1 - sx1 * sy0), 2);
+		if ((iE - iS) * (jE - jS) <= SMALL_PIXELS && !coversSample(sampleX, sampleY))
+			return false;
+
+		// Invert the matrix [x y w] via its adjugate, in double precision
+		double c00 = (double) y1 * wv2 - (double) wv1 * y2;
+		double c01 = (double) wv0 * y2 - (double) y0 * wv2;
+		double c02 = (double) y0 * wv1 - (double) wv0 * y1;
+		double det = x0 * c00 + x1 * c01 + x2 * c02;
+		if (Math.abs(det) < MIN_AREA * Math.abs((double) wv0 * wv1 * wv2))
+			return false;
+		double c10 = (double) wv1 * x2 - (double) x1 * wv2;
+		double c11 = (double) x0 * wv2 - (double) wv0 * x2;
+		double c12 = (double) wv0 * x1 - (double) x0 * wv1;
+		double c20 = (double) x1 * y2 - (double) y1 * x2;
+		double c21 = (double) y0 * x2 - (double) x0 * y2;
+		double c22 = (double) x0 * y1 - (double) y0 * x1;
+
+		// Columns of the inverse are the barycentric coordinates, which
+		// interpolate the 1/w and the attribute planes
+		float ha0 = (float) (c00 / det);
+		float ha1 = (float) (c10 / det);
+		float ha2 = (float) (c20 / det);
+		float hb0 = (float) (c01 / det);
+		float hb1 = (float) (c11 / det);
+		float hb2 = (float) (c21 / det);
+		float hg0 = (float) (c02 / det);
+		float hg1 = (float) (c12 / det);
+		float hg2 = (float) (c22 / det);
+
+		// Rows of the inverse summed up give the 1/w plane. The sums cancel,
+		// so they are taken in double precision.
+		w0 = (float) ((c00 + c01 + c02) / det);
+		w1 = (float) ((c10 + c11 + c12) / det);
+		w2 = (float) ((c20 + c21 + c22) / det);
+		// Pad the largest vertex value so that the hierarchical z-buffer
+		// never skips a visible pixel: coverage is decided on the snapped
+		// vertices, so a covered sample may lie up to a sub-pixel outside the
+		// triangle the plane goes through, and the rasterizer evaluates the
+		// plane in float
+		float snapError = (Math.abs(w0) + Math.abs(w1)) / SUBPIXELS;
+		float roundError = WINV_EPSILON * (Math.abs(w0) * iE + Math.abs(w1) * jE + Math.abs(w2));
+		maxWInv = Math.max(1 / wv0, Math.max(1 / wv1, 1 / wv2)) + snapError + roundError;
+
+		// Attribute planes, inverse times the matrix of vertex attributes
+		this.numChannels = numChannels;
+		if (c0.length < numChannels) {
+			c0 = new float[numChannels];
+			c1 = new float[numChannels];
+			c2 = new float[numChannels];
+		}
+		for (int c = 0; c < numChannels; c++) {
+			float f0 = v0[4 + c], f1 = v1[4 + c], f2 = v2[4 + c];
+			c0[c] = ha0 * f0 + hb0 * f1 + hg0 * f2;
+			c1[c] = ha1 * f0 + hb1 * f1 + hg1 * f2;
+			c2[c] = ha2 * f0 + hb2 * f1 + hg2 * f2;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Whether any sample of a pixel in the bounding box is covered, with the
+	 * same integer arithmetic as the raster kernels.
+	 */
+	private boolean coversSample(int[] sampleX, int[] sampleY) {
+		for (int s = 0; s < sampleX.length; s++) {
+			long da = (sampleX[s] * a0 + sampleY[s] * a1) / SUBPIXELS;
+			long db = (sampleX[s] * b0 + sampleY[s] * b1) / SUBPIXELS;
+			long dg = (sampleX[s] * g0 + sampleY[s] * g1) / SUBPIXELS;
+			for (int j = jS; j < jE; j++) {
+				for (int i = iS; i < iE; i++) {
+					if (a0 * i + a1 * j + a2 + da > 0 && b0 * i + b1 * j + b2 + db > 0
+							&& g0 * i + g1 * j + g2 + dg > 0)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Set edge function k from its fixed point coefficients, E(X, Y) = a * X +
+	 * b * Y + c. The stored function steps by whole pixels and is offset to
+	 * the pixel center. With y pointing down, an edge is a left edge if E
+	 * grows to the right, and a top edge if it is horizontal and E grows
+	 * downwards. Adding 1 on those edges turns the test E >= 0 into E > 0.
+	 */
+	private void setupEdge(long a, long b, long c, int k) {
+		long f0 = a * SUBPIXELS;
+		long f1 = b * SUBPIXELS;
+		long f2 = (a + b) * (SUBPIXELS / 2) + c;
+		if (a > 0 || (a == 0 && b > 0))
+			f2++;
+		switch (k) {
+		case 0:
+			a0 = f0;
+			a1 = f1;
+			a2 = f2;
+			break;
+		case 1:
+			b0 = f0;
+			b1 = f1;
+			b2 = f2;
+			break;
+		default:
+			g0 = f0;
+			g1 = f1;
+			g2 = f2;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package jrtr.swrenderer;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * Maps a pixel and its 1/w back to camera coordinates. This assumes a
+ * perspective projection whose last row is (0, 0, -1, 0), as made by
+ * {@link jrtr.Frustum}, so that w = -z. Then x = (w * (xndc + p02) - p03) /
+ * p00, and y likewise, where xndc follows from the viewport transformation.
+ */
+class SWUnprojection {
+
+	private float xScale, xOffset, xBias;
+	private float yScale, yOffset, yBias;
+
+	/**
+	 * Set the projection matrix and the viewport size of the frame.
+	 */
+	void set(Matrix4f p, int width, int height) {
+		xScale = 2.f / (width * p.getElement(0, 0));
+		xOffset = (p.getElement(0, 2) - 1) / p.getElement(0, 0);
+		xBias = -p.getElement(0, 3) / p.getElement(0, 0);
+		yScale = -2.f / (height * p.getElement(1, 1));
+		yOffset = (p.getElement(1, 2) + 1) / p.getElement(1, 1);
+		yBias = -p.getElement(1, 3) / p.getElement(1, 1);
+	}
+
+	/**
+	 * Fill in the camera space position of the fragment at screen position
+	 * (sx, sy) with the given w.
+	 */
+	void apply(SWFragment f, float sx, float sy, float w) {
+		f.x = w * (sx * xScale + xOffset) + xBias;
+		f.y = w * (sy * yScale + yOffset) + yBias;
+		f.z = -w;
+	}
+}
@@ -0,0 +1,163 @@
+package jrtr.swrenderer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A raster kernel that uses the JDK vector API for the per-pixel work that
+ * does not depend on the shader: the coverage of a block, and per row the
+ * 1/w plane, the depth test and the interpolation of the attribute channels.
+ * The shaders, texturing and the multisampled depth test still run in the
+ * scalar code of {@link SWRasterKernel}.
+ * <p>
+ * Coverage: the lanes hold the columns of the block. For each row, the
+ * minimum of the three edge functions is positive exactly for the covered
+ * pixels, and its inverted sign bit is collected into bit j of the lane. The
+ * lanes are then packed into one 64 bit word, an 8 x 8 bit matrix with one
+ * byte per column, which is transposed into one byte per row. This needs a
+ * single cross-lane reduction per block.
+ * <p>
+ * Rows: a row of the block is one float vector of 8 lanes. The depth test
+ * loads the stored 1/w of the row, compares, and stores the row back with
+ * the new values blended in where the covered pixels passed. Each lane that
+ * passed contributes its bit to three bytes of one int, in a single OR
+ * reduction: the pixels that passed, those that filled an empty pixel, and
+ * those that overwrote a value that may be the farthest of the block. The
+ * last two update the hierarchy level of the depth buffer. If any pixel passed, the channels are interpolated for the
+ * whole row into the fragment columns, and the pixels are shaded one by one.
+ * With the fixed point depth format, and in blocks narrower than 8 pixels at
+ * the right edge of the screen, the rows go through the scalar code.
+ * <p>
+ * The vector API of JDK 17 is slow at masked loads and stores and at
+ * converting masks from and to bit masks. So the rows are loaded and stored
+ * whole, the covered bits select a precomputed mask, and the result bits
+ * come from the reduction rather than from the mask.
+ * <p>
+ * The edge functions are exact integers, and the float planes are evaluated
+ * with the same operations in the same order as in the scalar kernel, so this
+ * kernel produces the same image. It needs the incubating
+ * jdk.incubator.vector module, so it is kept in its own source set: compile
+ * it against the main classes with --add-modules jdk.incubator.vector, and
+ * run the program with the same option. Without the module, or without this
+ * class on the class path, {@link SWRasterKernel#create} falls back to the
+ * scalar kernel.
+ */
+class SWVectorRasterKernel extends SWRasterKernel {
+
+	// The coverage packs one byte per lane into a long, so it uses at most
+	// 8 lanes even where the preferred species is wider
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED.length() > 8
+			? LongVector.SPECIES_512 : LongVector.SPECIES_PREFERRED;
+
+	// Lane indices 0, 1, ..., SPECIES.length() - 1
+	private static final LongVector LANES = LongVector.zero(SPECIES).addIndex(1);
+
+	// One lane per column of a block row, see SWDepthBuffer.BLOCK_SIZE
+	private static final VectorSpecies<Float> ROW = FloatVector.SPECIES_256;
+	private static final FloatVector COLUMNS = FloatVector.zero(ROW).addIndex(1);
+	private static final FloatVector ONE = FloatVector.broadcast(ROW, 1);
+
+	// The mask of the lanes set in each 8 bit mask of covered pixels
+	private static final VectorMask<Float>[] COVERED = makeMasks();
+
+	// Per lane i, the result bits of a pixel that passed the depth test: bit
+	// i, plus bit 8 + i if it filled an empty pixel or bit 16 + i if it
+	// overwrote one that may be the farthest of the block. They are stored as
+	// the bits of floats, so they can be blended with float masks.
+	private static final FloatVector PASSED = laneBits(0);
+	private static final FloatVector FILLED = laneBits(8);
+	private static final FloatVector FAR = laneBits(16);
+
+	@Override
+	void coverBlock(SWTriangle t, long a, long b, long g, int cols, int rows, int[] covered) {
+		int n = SPECIES.length();
+		long bits = 0;
+		for (int i = 0; i < cols; i += n) {
+			LongVector ea = LANES.mul(t.a0).add(a + i * t.a0);
+			LongVector eb = LANES.mul(t.b0).add(b + i * t.b0);
+			LongVector eg = LANES.mul(t.g0).add(g + i * t.g0);
+			LongVector column = LongVector.zero(SPECIES);
+			for (int j = 0; j < rows; j++) {
+				LongVector e = ea.add(j * t.a1).min(eb.add(j * t.b1)).min(eg.add(j * t.g1));
+				column = column.or(e.neg().lanewise(VectorOperators.LSHR, 63).lanewise(VectorOperators.LSHL, j));
+			}
+			bits |= column.lanewise(VectorOperators.LSHL, LANES.add(i).mul(8)).reduceLanes(VectorOperators.OR);
+		}
+
+		// Transpose the 8 x 8 bit matrix, bit 8i + j to bit 8j + i. This relies
+		// on blocks of 8 x 8 pixels, see SWDepthBuffer.BLOCK_SIZE.
+		long swap = (bits ^ (bits >>> 7)) & 0x00AA00AA00AA00AAL;
+		bits ^= swap ^ (swap << 7);
+		swap = (bits ^ (bits >>> 14)) & 0x0000CCCC0000CCCCL;
+		bits ^= swap ^ (swap << 14);
+		swap = (bits ^ (bits >>> 28)) & 0x00000000F0F0F0F0L;
+		bits ^= swap ^ (swap << 28);
+
+		// Lanes past the end of the row are not part of the block
+		int inRow = (1 << cols) - 1;
+		for (int j = 0; j < rows; j++) {
+			covered[j] = (int) (bits >>> (8 * j)) & inRow;
+		}
+	}
+
+	@Override
+	void rasterizeRow(SWTriangle t, int p, int block, int cols, int j, float wRow, int covered) {
+		float[] depth = zBuffer.getFloatDepth();
+		if (depth == null || cols < ROW.length()) {
+			super.rasterizeRow(t, p, block, cols, j, wRow, covered);
+			return;
+		}
+
+		// The whole row of the block is loaded and stored back, with the old
+		// values in the lanes that did not pass. The row belongs to this
+		// block, so no other thread writes it meanwhile.
+		VectorMask<Float> inside = COVERED[covered];
+		FloatVector old = FloatVector.fromArray(ROW, depth, p);
+		FloatVector wRowInv = COLUMNS.mul(t.w0).add(wRow);
+		VectorMask<Float> passed = wRowInv.compare(VectorOperators.GT, old).and(inside);
+		old.blend(wRowInv, passed).intoArray(depth, p);
+
+		VectorMask<Float> empty = old.compare(VectorOperators.EQ, 0);
+		VectorMask<Float> far = old.compare(VectorOperators.LE, zBuffer.getCachedFarthest(block));
+		int bits = FloatVector.zero(ROW).blend(PASSED, passed).blend(FAR, passed.and(far))
+				.blend(FILLED, passed.and(empty)).reinterpretAsInts().reduceLanes(VectorOperators.OR);
+		if (bits == 0)
+			return;
+		zBuffer.recordWrites(block, Integer.bitCount((bits >>> 8) & 255), (bits >>> 16) != 0);
+
+		FloatVector w = ONE.div(wRowInv);
+		float fj = j;
+		for (int c = 0; c < t.numChannels; c++) {
+			float rowBase = attributeBase[c] + fj * t.c1[c];
+			COLUMNS.mul(t.c0[c]).add(rowBase).mul(w).intoArray(fragment, c * SWDepthBuffer.BLOCK_SIZE);
+		}
+
+		int shaded = bits & 255;
+		do {
+			int i = Integer.numberOfTrailingZeros(shaded);
+			shaded &= shaded - 1;
+			shade(t, p + i, i, j, wRow + i * t.w0, true);
+		} while (shaded != 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static VectorMask<Float>[] makeMasks() {
+		VectorMask<Float>[] masks = new VectorMask[1 << SWDepthBuffer.BLOCK_SIZE];
+		for (int bits = 0; bits < masks.length; bits++) {
+			masks[bits] = VectorMask.fromLong(ROW, bits);
+		}
+		return masks;
+	}
+
+	private static FloatVector laneBits(int shift) {
+		int[] bits = new int[ROW.length()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 1 << i | 1 << (shift + i);
+		}
+		return IntVector.fromArray(IntVector.SPECIES_256, bits, 0).reinterpretAsFloats();
+	}
+}
@@ -0,0 +1,173 @@
+package simple;
+
+import jrtr.*;
+import jrtr.swrenderer.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.vecmath.*;
+
+/**
+ * Renders the diamond-square terrain of {@link simple10}, a grid of 129 x 129
+ * vertices, with the software renderer and without a window. After as many
+ * warm-up frames as measured frames, it prints the average time and the heap
+ * memory allocated per frame by all threads.
+ * <p>
+ * The benchmark doubles as a regression check for the allocation-free
+ * rasterizer. It renders at the given size and at twice its width and
+ * height, and exits with status 1 if either run allocates more than
+ * {@value #MAX_BYTES_PER_FRAME} bytes per frame, or if the larger viewport
+ * allocates more than {@value #MAX_GROWTH} bytes per frame more than the
+ * smaller one. One allocation per triangle of the terrain would exceed the
+ * first bound many times over, and one per pixel or row would exceed the
+ * second. The check needs the per-thread allocation counters of HotSpot
+ * based JVMs; on other JVMs it is skipped with a message. It is not run by
+ * the build, so run it by hand after changing the renderer.
+ * <p>
+ * The terrain is random, so times vary a little from run to run.
+ * <p>
+ * Usage: SWBenchmark [width height [frames]] [serial]
+ */
+public class SWBenchmark
+{
+	// Bytes per frame allowed for the per-frame bookkeeping, such as the
+	// tasks handed to the thread pools and the scene graph iterator
+	static final int MAX_BYTES_PER_FRAME = 64 * 1024;
+
+	// Bytes per frame the larger viewport may allocate on top of the smaller
+	// one, which absorbs the noise of the measurement
+	static final int MAX_GROWTH = 1024;
+
+	public static void main(String[] args)
+	{
+		int n = args.length;
+		boolean serial = n > 0 && args[n - 1].equals("serial");
+		if (serial)
+			n--;
+		int width = n > 1 ? Integer.parseInt(args[0]) : 640;
+		int height = n > 1 ? Integer.parseInt(args[1]) : 480;
+		int frames = n > 2 ? Integer.parseInt(args[2]) : 100;
+
+		SWRenderContext renderContext = new SWRenderContext();
+		renderContext.setTiledRendering(!serial);
+		renderContext.setSceneManager(makeScene(renderContext));
+		long small = run(renderContext, width, height, frames);
+		long large = run(renderContext, 2 * width, 2 * height, frames);
+		renderContext.dispose();
+
+		if (small < 0 || large < 0) {
+			System.out.println("This JVM does not count allocated bytes per thread; skipping the allocation check");
+			return;
+		}
+		boolean failed = false;
+		if (Math.max(small, large) > MAX_BYTES_PER_FRAME) {
+			System.out.printf("FAILED: more than %d bytes allocated per frame%n", MAX_BYTES_PER_FRAME);
+			failed = true;
+		}
+		if (large - small > MAX_GROWTH) {
+			System.out.printf("FAILED: allocation per frame grows with the viewport size, by %d bytes%n",
+					large - small);
+			failed = true;
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Render the scene at the given viewport size, print the time and the
+	 * memory allocated per frame, and return the bytes allocated per frame,
+	 * or -1 if they cannot be measured.
+	 */
+	private static long run(SWRenderContext renderContext, int width, int height, int frames)
+	{
+		renderContext.setViewportSize(width, height);
+
+		// Warm up, so the JIT compiler and the reused buffers have settled
+		for (int i = 0; i < frames; i++) {
+			renderContext.display();
+		}
+
+		long bytes = allocatedBytes();
+		long time = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			renderContext.display();
+		}
+		time = System.nanoTime() - time;
+		String mode = renderContext.isTiledRendering() ? "tiled" : "serial";
+		if (bytes < 0) {
+			System.out.printf("Terrain at %dx%d, %s: %.2f ms per frame%n", width, height, mode, time / 1e6 / frames);
+			return -1;
+		}
+		bytes = (allocatedBytes() - bytes) / frames;
+
+		System.out.printf("Terrain at %dx%d, %s: %.2f ms and %d bytes allocated per frame%n", width, height, mode,
+				time / 1e6 / frames, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Make the terrain of simple10, seen from the same camera and lit by the
+	 * same light.
+	 */
+	static SceneManagerInterface makeScene(RenderContext renderContext)
+	{
+		DiamondSquareLandscape DSL = new DiamondSquareLandscape(7);
+		int res = 129;
+		VertexData vertexData = renderContext.makeVertexData(res*res);
+		vertexData.addElement(DSL.colors, VertexData.Semantic.COLOR, 3);
+		vertexData.addElement(DSL.vertices, VertexData.Semantic.POSITION, 3);
+		vertexData.addElement(DSL.normals, VertexData.Semantic.NORMAL, 3);
+		vertexData.addIndices(DSL.indices);
+
+		Shader diffuseShader = renderContext.makeShader();
+		try {
+			diffuseShader.load("../jrtr/shaders/diffuse3.vert", "../jrtr/shaders/diffuse3.frag");
+		} catch (Exception e) {
+			System.out.print("Problem with shader:\n");
+			System.out.print(e.getMessage());
+		}
+		Material material = new Material();
+		material.shader = diffuseShader;
+		Shape ground = new Shape(vertexData);
+		ground.setMaterial(material);
+
+		TransformGroup root = new TransformGroup();
+		root.children.add(new ShapeNode(ground));
+		GraphSceneManager sceneManager = new GraphSceneManager(root);
+		sceneManager.getCamera().setCenterOfProjection(new Vector3f(0, -25, 15));
+		sceneManager.getCamera().setLookAtPoint(new Vector3f(0, 0, 10));
+
+		Light white = new Light();
+		white.type = Light.Type.POINT;
+		white.diffuse = new Vector3f(25,25,25);
+		white.position = new Vector3f(25,25,10);
+		sceneManager.addLight(white);
+		return sceneManager;
+	}
+
+	/**
+	 * Return the number of bytes allocated so far by all live threads, or -1
+	 * if the JVM does not count them.
+	 */
+	private static long allocatedBytes()
+	{
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean))
+				return -1;
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+				return -1;
+			long sum = 0;
+			for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+				if (bytes > 0)
+					sum += bytes;
+			}
+			return sum;
+		} catch (LinkageError e) {
+			// No com.sun.management on this JVM
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package simple;
+
+import jrtr.*;
+import jrtr.swrenderer.*;
+
+import java.util.Arrays;
+
+/**
+ * Checks that the vectorized raster kernel of the software renderer produces
+ * the same images as the scalar one. It renders the terrain of
+ * {@link SWBenchmark} with both kernels, serial and tiled, with every
+ * multisampling setting, both depth formats and back face culling, and
+ * compares the images pixel by pixel. It exits with status 1 if any image
+ * differs or is completely black, which would make the comparison
+ * meaningless, and with status 2 if the vector kernel is not available.
+ * <p>
+ * The vector kernel needs the vector API, so run this with --add-modules
+ * jdk.incubator.vector and the classes of jrtr/src/vector on the class path.
+ * <p>
+ * Usage: SWKernelCheck [width height]
+ */
+public class SWKernelCheck
+{
+	public static void main(String[] args)
+	{
+		int width = args.length > 1 ? Integer.parseInt(args[0]) : 320;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+		if (!SWRenderContext.isVectorRasterizationAvailable()) {
+			System.out.println("The vector raster kernel is not available; run with --add-modules "
+					+ "jdk.incubator.vector and jrtr/src/vector on the class path");
+			System.exit(2);
+		}
+
+		SWRenderContext renderContext = new SWRenderContext();
+		renderContext.setViewportSize(width, height);
+		renderContext.setSceneManager(SWBenchmark.makeScene(renderContext));
+
+		int failures = 0;
+		for (int samples : new int[] { 1, 2, 4, 8 }) {
+			for (SWRenderContext.DepthFormat format : SWRenderContext.DepthFormat.values()) {
+				for (SWRenderContext.CullMode cull : new SWRenderContext.CullMode[] { SWRenderContext.CullMode.NONE,
+						SWRenderContext.CullMode.BACK }) {
+					for (boolean tiled : new boolean[] { true, false }) {
+						renderContext.setMultisampling(samples);
+						renderContext.setDepthFormat(format);
+						renderContext.setCullMode(cull);
+						renderContext.setTiledRendering(tiled);
+						int[] scalar = render(renderContext, false, width, height);
+						int[] vector = render(renderContext, true, width, height);
+						boolean same = Arrays.equals(scalar, vector);
+						boolean black = isBlack(scalar);
+						System.out.printf("%dx, %s, cull %s, %s: %s%n", samples, format, cull,
+								tiled ? "tiled" : "serial", black ? "BLACK" : same ? "same" : "DIFFERENT");
+						if (!same || black)
+							failures++;
+					}
+				}
+			}
+		}
+		renderContext.dispose();
+		if (failures > 0) {
+			System.out.println(failures + " images differ or are black");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Render a frame with the scalar or the vector kernel and return its
+	 * pixels.
+	 */
+	private static int[] render(SWRenderContext renderContext, boolean vector, int width, int height)
+	{
+		renderContext.setVectorRasterization(vector);
+		renderContext.display();
+		return renderContext.getColorBuffer().getRGB(0, 0, width, height, null, 0, width);
+	}
+
+	private static boolean isBlack(int[] pixels)
+	{
+		for (int p : pixels) {
+			if ((p & 0xffffff) != 0)
+				return false;
+		}
+		return true;
+	}
+}
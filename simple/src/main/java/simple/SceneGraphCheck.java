@@ -0,0 +1,152 @@
+package simple;
+
+import jrtr.*;
+import jrtr.swrenderer.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import javax.vecmath.*;
+
+/**
+ * Checks that the spatial index of {@link GraphSceneManager} yields the same
+ * render items as culling the shapes one by one. It builds the same scene
+ * twice, a large group of cubes with a large subgroup, and traverses one copy
+ * with the index and one without while the camera moves. Before each frame
+ * it applies the same edits to both copies: shapes and the subgroup are
+ * modified in place and marked dirty, and some of the shapes drawn in the
+ * previous frame are modified in place without being marked. Each frame must
+ * yield the same shapes with the same world transformations, in any order.
+ * It exits with status 1 if any frame differs or draws nothing, which would
+ * make the comparison meaningless.
+ * <p>
+ * Usage: SceneGraphCheck [frames]
+ */
+public class SceneGraphCheck
+{
+	private static final int SHAPES = 300;
+	private static final int SUBGROUP_SHAPES = 100;
+
+	/**
+	 * One copy of the scene: the root, the subgroup, and all shape nodes in
+	 * the order they were made.
+	 */
+	private static class Scene
+	{
+		TransformGroup root = new TransformGroup();
+		TransformGroup subgroup = new TransformGroup();
+		ArrayList<ShapeNode> nodes = new ArrayList<ShapeNode>();
+		HashMap<Shape, Integer> numbers = new HashMap<Shape, Integer>();
+		GraphSceneManager sceneManager = new GraphSceneManager(root);
+
+		Scene(VertexData cube, boolean spatialIndex)
+		{
+			Random random = new Random(1);
+			for (int i = 0; i < SHAPES + SUBGROUP_SHAPES; i++) {
+				Shape shape = new Shape(cube);
+				shape.getTransformation().setTranslation(randomPosition(random));
+				ShapeNode node = new ShapeNode(shape);
+				numbers.put(shape, i);
+				nodes.add(node);
+				(i < SHAPES ? root : subgroup).children.add(node);
+			}
+			root.children.add(subgroup);
+			sceneManager.setSpatialIndex(spatialIndex);
+		}
+
+		/**
+		 * Traverse the scene and return the world transformations of the
+		 * drawn shapes by their number.
+		 */
+		HashMap<Integer, Matrix4f> items()
+		{
+			HashMap<Integer, Matrix4f> items = new HashMap<Integer, Matrix4f>();
+			SceneManagerIterator iterator = sceneManager.iterator();
+			while (iterator.hasNext()) {
+				RenderItem item = iterator.next();
+				items.put(numbers.get(item.getShape()), new Matrix4f(item.getT()));
+			}
+			return items;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+		SWRenderContext renderContext = new SWRenderContext();
+		VertexData cube = makeCube(renderContext);
+		renderContext.dispose();
+		Scene plain = new Scene(cube, false);
+		Scene indexed = new Scene(cube, true);
+
+		Random random = new Random(2);
+		HashMap<Integer, Matrix4f> drawn = new HashMap<Integer, Matrix4f>();
+		int failures = 0;
+		for (int frame = 0; frame < frames; frame++) {
+			Vector3f eye = new Vector3f((float) Math.sin(frame * 0.05) * 40, 5, (float) Math.cos(frame * 0.05) * 40);
+			Integer[] previous = drawn.keySet().toArray(new Integer[drawn.size()]);
+
+			// Draw the random numbers first, so both copies get the same edits
+			int[] marked = new int[5];
+			Vector3f[] positions = new Vector3f[marked.length];
+			for (int k = 0; k < marked.length; k++) {
+				marked[k] = random.nextInt(SHAPES + SUBGROUP_SHAPES);
+				positions[k] = randomPosition(random);
+			}
+			int unmarked = previous.length > 0 ? previous[random.nextInt(previous.length)] : -1;
+			float scale = 0.5f + random.nextFloat();
+			float angle = random.nextFloat();
+
+			for (Scene scene : new Scene[] { plain, indexed }) {
+				scene.sceneManager.getCamera().setCenterOfProjection(eye);
+				for (int k = 0; k < marked.length; k++) {
+					ShapeNode node = scene.nodes.get(marked[k]);
+					node.getShape().getTransformation().setTranslation(positions[k]);
+					node.markDirty();
+				}
+				if (unmarked >= 0)
+					scene.nodes.get(unmarked).getShape().getTransformation().setScale(scale);
+				if (frame % 10 == 0) {
+					scene.subgroup.transformation.rotY(angle);
+					scene.subgroup.markDirty();
+				}
+			}
+
+			drawn = plain.items();
+			HashMap<Integer, Matrix4f> items = indexed.items();
+			if (!items.equals(drawn) || drawn.isEmpty()) {
+				if (failures < 5)
+					System.out.printf("Frame %d: %d shapes without the index, %d with it%n", frame, drawn.size(),
+							items.size());
+				failures++;
+			}
+		}
+		System.out.printf("%d frames, %d differ or draw nothing%n", frames, failures);
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	private static Vector3f randomPosition(Random random)
+	{
+		return new Vector3f(random.nextFloat() * 80 - 40, random.nextFloat() * 10 - 5, random.nextFloat() * 80 - 40);
+	}
+
+	/**
+	 * Make a cube of side length 2 around the origin. Only its positions are
+	 * needed, for the bounds of the shapes.
+	 */
+	private static VertexData makeCube(RenderContext renderContext)
+	{
+		float[] v = new float[24];
+		for (int i = 0; i < 8; i++) {
+			v[3 * i] = (i & 1) * 2 - 1;
+			v[3 * i + 1] = ((i >> 1) & 1) * 2 - 1;
+			v[3 * i + 2] = ((i >> 2) & 1) * 2 - 1;
+		}
+		VertexData vertexData = renderContext.makeVertexData(8);
+		vertexData.addElement(v, VertexData.Semantic.POSITION, 3);
+		return vertexData;
+	}
+}
@@ -54,6 +54,16 @@ public class simple4
 
 			// Add the scene to the renderer
 			renderContext.setSceneManager(sceneManager);
+
+			// Render one frame ahead on the frame thread. Pipelined frames
+			// complete after display() returns; repaint so the last one is
+			// shown even when nothing else triggers a repaint
+			((SWRenderContext) renderContext).setFrameLatency(1);
+			((SWRenderContext) renderContext).setFrameListener(new SWRenderContext.FrameListener() {
+				public void frameCompleted() {
+					renderPanel.getCanvas().repaint();
+				}
+			});
 			
 			// Load some more shaders
 		    normalShader = renderContext.makeShader();
@@ -476,7 +476,7 @@ public class simple7
 			t.mul(adjust);
 			adjust.rotZ((float) Math.toRadians(90));
 			t.mul(adjust);
-			torso.transformation = new Matrix4f(t);
+			torso.setTransformation(new Matrix4f(t));
 			
 			//Adjust lShoulder
 			if (accstep % (currentstep*100) > (currentstep*25) && accstep % (currentstep*100) < (currentstep*75)) {
@@ -485,6 +485,7 @@ public class simple7
 				adjust.rotY((float) Math.toRadians(currentstep*-180));
 			}
 			lShoulder.transformation.mul(adjust);
+			lShoulder.markDirty();
 			
 			//Adjust rShoulder
 			if (accstep % (currentstep*100) > (currentstep*25) && accstep % (currentstep*100) < (currentstep*75)) {
@@ -493,6 +494,7 @@ public class simple7
 				adjust.rotY((float) Math.toRadians(currentstep*180));
 			}
 			rShoulder.transformation.mul(adjust);
+			rShoulder.markDirty();
 			
 			
 			//Adjust lHip
@@ -502,6 +504,7 @@ public class simple7
 				adjust.rotY((float) Math.toRadians(currentstep*180));
 			}
 			lHip.transformation.mul(adjust);
+			lHip.markDirty();
 			
 			//Adjust rHip
 			if (accstep % (currentstep*100) > (currentstep*25) && accstep % (currentstep*100) < (currentstep*75)) {
@@ -510,6 +513,7 @@ public class simple7
 				adjust.rotY((float) Math.toRadians(currentstep*-180));
 			}
 			rHip.transformation.mul(adjust);
+			rHip.markDirty();
 			
 			
 			accstep+=currentstep;